@@ -1,268 +1,5764 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 interface Shippable {
     String getName();
     double getWeight();
 }
 
+abstract class BusinessClock {
+    static final int NO_EXPIRY = Integer.MAX_VALUE;
+    
+    private static volatile BusinessClock current = new SystemBusinessClock(ZoneId.systemDefault());
+    
+    public static BusinessClock get() {
+        return current;
+    }
+    
+    public static void install(BusinessClock clock) {
+        current = Objects.requireNonNull(clock);
+    }
+    
+    public static int epochDay(LocalDate date) {
+        return date == null ? NO_EXPIRY : Math.toIntExact(date.toEpochDay());
+    }
+    
+    public abstract int today();
+}
+
+class SystemBusinessClock extends BusinessClock {
+    private static final class Day {
+        final int epochDay;
+        final long startMillis;
+        final long endMillis;
+        
+        Day(int epochDay, long startMillis, long endMillis) {
+            this.epochDay = epochDay;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+        }
+    }
+    
+    private final ZoneId zone;
+    private volatile Day day;
+    
+    public SystemBusinessClock(ZoneId zone) {
+        this.zone = zone;
+        this.day = dayAt(System.currentTimeMillis());
+    }
+    
+    @Override
+    public int today() {
+        Day day = this.day;
+        long now = System.currentTimeMillis();
+        if (now >= day.endMillis || now < day.startMillis) {
+            day = dayAt(now);
+            this.day = day;
+        }
+        return day.epochDay;
+    }
+    
+    private Day dayAt(long millis) {
+        LocalDate date = Instant.ofEpochMilli(millis).atZone(zone).toLocalDate();
+        long start = date.atStartOfDay(zone).toInstant().toEpochMilli();
+        long end = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        return new Day(Math.toIntExact(date.toEpochDay()), start, end);
+    }
+}
+
+class ManualBusinessClock extends BusinessClock {
+    private volatile int today;
+    
+    public ManualBusinessClock(LocalDate today) {
+        this.today = BusinessClock.epochDay(today);
+    }
+    
+    @Override
+    public int today() {
+        return today;
+    }
+    
+    public void setToday(LocalDate date) {
+        this.today = BusinessClock.epochDay(date);
+    }
+    
+    public void advanceDays(int days) {
+        this.today += days;
+    }
+}
+
+final class Money {
+    static final long MINOR_PER_MAJOR = 100;
+    
+    private Money() {
+    }
+    
+    public static long ofMajor(long major) {
+        return Math.multiplyExact(major, MINOR_PER_MAJOR);
+    }
+    
+    public static long of(long major, int minor) {
+        return Math.addExact(ofMajor(major), minor);
+    }
+    
+    public static long times(long amount, int quantity) {
+        return Math.multiplyExact(amount, (long) quantity);
+    }
+    
+    public static long perKg(long ratePerKg, double weightKg) {
+        return Math.round(ratePerKg * weightKg);
+    }
+    
+    public static String format(long amount) {
+        return appendTo(new StringBuilder(8), amount).toString();
+    }
+    
+    public static StringBuilder appendTo(StringBuilder out, long amount) {
+        long abs = Math.abs(amount);
+        long minor = abs % MINOR_PER_MAJOR;
+        if (amount < 0) {
+            out.append('-');
+        }
+        return out.append(abs / MINOR_PER_MAJOR).append(minor < 10 ? ".0" : ".").append(minor);
+    }
+}
+
 abstract class Product {
+    private static final VarHandle QUANTITY;
+    
+    static {
+        try {
+            QUANTITY = MethodHandles.lookup().findVarHandle(Product.class, "quantity", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
     protected String name;
-    protected double price;
-    protected int quantity;
+    protected long price;
+    protected volatile int quantity;
+    private volatile StockStripes stripes;
+    private volatile boolean delisted;
+    private int catalogId = -1;
     
-    public Product(String name, double price, int quantity) {
+    public Product(String name, long price, int quantity) {
         this.name = name;
         this.price = price;
         this.quantity = quantity;
     }
     
-    public String getName() {
-        return name;
+    public String getName() {
+        return name;
+    }
+    
+    public long getPrice() {
+        return price;
+    }
+    
+    // With striping, units moved between the central count and a stripe are never missed or counted twice.
+    // Reserves and releases that race the read may or may not be included, so the total is exact only when
+    // no reservation is in flight.
+    public int getQuantity() {
+        StockStripes stripes = this.stripes;
+        if (stripes == null) {
+            return quantity;
+        }
+        while (true) {
+            long moves = stripes.awaitNoMoves();
+            int total = quantity + stripes.total();
+            if (stripes.movesUnchanged(moves)) {
+                return total;
+            }
+        }
+    }
+    
+    public void setQuantity(int quantity) {
+        StockStripes stripes = this.stripes;
+        if (stripes == null) {
+            this.quantity = quantity;
+            return;
+        }
+        stripes.beginMove();
+        try {
+            stripes.drainAll();
+            this.quantity = quantity;
+        } finally {
+            stripes.endMove();
+        }
+    }
+    
+    public boolean isStriped() {
+        return stripes != null;
+    }
+    
+    public boolean enableStriping() {
+        return enableStriping(Runtime.getRuntime().availableProcessors(), 64);
+    }
+    
+    // Returns whether stock is striped afterwards; products that keep stock elsewhere may decline.
+    public synchronized boolean enableStriping(int stripeCount, int refillChunk) {
+        if (stripes == null) {
+            stripes = new StockStripes(stripeCount, refillChunk);
+        }
+        return true;
+    }
+    
+    public boolean tryReserve(int amount) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Reservation amount must be positive: " + amount);
+        }
+        StockStripes stripes = this.stripes;
+        if (stripes == null) {
+            return reserveCentral(amount);
+        }
+        int slot = stripes.slot();
+        if (stripes.tryTake(slot, amount)) {
+            return true;
+        }
+        stripes.beginMove();
+        try {
+            int taken = takeCentral(amount + stripes.getRefillChunk());
+            if (taken >= amount) {
+                if (taken > amount) {
+                    stripes.add(slot, taken - amount);
+                }
+                return true;
+            }
+            // Central pool is nearly empty: pull every slice back so the last units can still be sold.
+            QUANTITY.getAndAdd(this, taken + stripes.drainAll());
+            if (reserveCentral(amount)) {
+                return true;
+            }
+        } finally {
+            stripes.endMove();
+        }
+        // Another thread's refill can move the drained units into its stripe before the CAS above, so keep
+        // pulling them back while the free stock still covers the request, as an unstriped product would.
+        while (getQuantity() >= amount) {
+            stripes.beginMove();
+            try {
+                QUANTITY.getAndAdd(this, stripes.drainAll());
+                if (reserveCentral(amount)) {
+                    return true;
+                }
+            } finally {
+                stripes.endMove();
+            }
+        }
+        return false;
+    }
+    
+    public void release(int amount) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Release amount must be positive: " + amount);
+        }
+        StockStripes stripes = this.stripes;
+        if (stripes == null) {
+            QUANTITY.getAndAdd(this, amount);
+        } else {
+            stripes.add(stripes.slot(), amount);
+        }
+    }
+    
+    private boolean reserveCentral(int amount) {
+        int available = (int) QUANTITY.getVolatile(this);
+        while (available >= amount) {
+            int witness = (int) QUANTITY.compareAndExchange(this, available, available - amount);
+            if (witness == available) {
+                return true;
+            }
+            available = witness;
+        }
+        return false;
+    }
+    
+    private int takeCentral(int max) {
+        int available = (int) QUANTITY.getVolatile(this);
+        while (available > 0) {
+            int taken = Math.min(available, max);
+            int witness = (int) QUANTITY.compareAndExchange(this, available, available - taken);
+            if (witness == available) {
+                return taken;
+            }
+            available = witness;
+        }
+        return 0;
+    }
+    
+    public int getExpiryEpochDay() {
+        return BusinessClock.NO_EXPIRY;
+    }
+    
+    public boolean isExpired() {
+        return delisted || BusinessClock.get().today() > getExpiryEpochDay();
+    }
+    
+    public int getCatalogId() {
+        return catalogId;
+    }
+    
+    void assignCatalogId(int catalogId) {
+        if (this.catalogId != -1) {
+            throw new IllegalStateException("Product already belongs to a catalog: " + name);
+        }
+        this.catalogId = catalogId;
+    }
+    
+    public boolean isDelisted() {
+        return delisted;
+    }
+    
+    public void delist() {
+        delisted = true;
+    }
+    
+    public abstract boolean requiresShipping();
+}
+
+interface ExpiryListener {
+    void onExpired(int today, List<Product> expired);
+}
+
+class ExpiryIndex {
+    private final Map<Integer, List<Product>> buckets = new HashMap<>();
+    private final List<Product> overdue = new ArrayList<>();
+    private final ExpiryListener listener;
+    private int sweptThrough;
+    
+    public ExpiryIndex(ExpiryListener listener) {
+        this(BusinessClock.get().today(), listener);
+    }
+    
+    public ExpiryIndex(int today, ExpiryListener listener) {
+        this.sweptThrough = today;
+        this.listener = listener;
+    }
+    
+    public synchronized void add(Product product) {
+        int day = product.getExpiryEpochDay();
+        if (day == BusinessClock.NO_EXPIRY) {
+            return;
+        }
+        if (day < sweptThrough) {
+            overdue.add(product);
+        } else {
+            buckets.computeIfAbsent(day, d -> new ArrayList<>()).add(product);
+        }
+    }
+    
+    public synchronized boolean remove(Product product) {
+        List<Product> bucket = buckets.get(product.getExpiryEpochDay());
+        if (bucket != null && bucket.remove(product)) {
+            if (bucket.isEmpty()) {
+                buckets.remove(product.getExpiryEpochDay());
+            }
+            return true;
+        }
+        return overdue.remove(product);
+    }
+    
+    public List<Product> sweep() {
+        return sweep(BusinessClock.get().today());
+    }
+    
+    // A product expires once today is past its expiry day, so every bucket before today is due.
+    public List<Product> sweep(int today) {
+        List<Product> expired;
+        synchronized (this) {
+            expired = new ArrayList<>(overdue);
+            overdue.clear();
+            for (; sweptThrough < today; sweptThrough++) {
+                List<Product> bucket = buckets.remove(sweptThrough);
+                if (bucket != null) {
+                    expired.addAll(bucket);
+                }
+            }
+        }
+        if (expired.isEmpty()) {
+            return expired;
+        }
+        for (Product product : expired) {
+            product.delist();
+        }
+        if (listener != null) {
+            listener.onExpired(today, expired);
+        }
+        return expired;
+    }
+}
+
+class ProductCatalog {
+    private static final int BUCKET_SIZE = 4;
+    private static final int MAX_SEED = 1 << 16;
+    
+    private volatile Product[] products;
+    private volatile int size;
+    // Hash-and-displace perfect hash over the names present at build time.
+    private final int[] seeds;
+    private final int[] slots;
+    private final int slotMask;
+    // Products registered after the build, and build-time names the perfect hash cannot separate, live here.
+    private final Map<String, Integer> overflow = new ConcurrentHashMap<>();
+    
+    public ProductCatalog(List<? extends Product> initial) {
+        int n = initial.size();
+        Product[] products = new Product[Math.max(16, n)];
+        Set<String> names = new HashSet<>();
+        for (int id = 0; id < n; id++) {
+            Product product = initial.get(id);
+            if (!names.add(product.getName())) {
+                throw new IllegalArgumentException("Duplicate product name: " + product.getName());
+            }
+            product.assignCatalogId(id);
+            products[id] = product;
+        }
+        this.products = products;
+        this.size = n;
+        int tableSize = Integer.highestOneBit(Math.max(2, n + n / 4) - 1) << 1;
+        this.slotMask = tableSize - 1;
+        this.slots = new int[tableSize];
+        this.seeds = new int[Math.max(1, (n + BUCKET_SIZE - 1) / BUCKET_SIZE)];
+        build();
+    }
+    
+    private void build() {
+        int n = size;
+        int buckets = seeds.length;
+        int[] bucketOf = new int[n];
+        int[] counts = new int[buckets + 1];
+        for (int id = 0; id < n; id++) {
+            bucketOf[id] = Math.floorMod(mix(products[id].getName().hashCode()), buckets);
+            counts[bucketOf[id] + 1]++;
+        }
+        int[] starts = counts.clone();
+        for (int b = 0; b < buckets; b++) {
+            starts[b + 1] += starts[b];
+        }
+        int[] members = new int[n];
+        int[] fill = Arrays.copyOf(starts, buckets);
+        for (int id = 0; id < n; id++) {
+            members[fill[bucketOf[id]]++] = id;
+        }
+        Integer[] order = new Integer[buckets];
+        for (int b = 0; b < buckets; b++) {
+            order[b] = b;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(counts[b + 1], counts[a + 1]));
+        
+        Arrays.fill(slots, -1);
+        int[] claimed = new int[BUCKET_SIZE * 4];
+        for (int bucket : order) {
+            int from = starts[bucket];
+            int to = from;
+            // Names with equal hash codes land on the same slot under every seed, so only the first is placed.
+            for (int i = from; i < starts[bucket + 1]; i++) {
+                int hash = products[members[i]].getName().hashCode();
+                boolean collides = false;
+                for (int j = from; j < to && !collides; j++) {
+                    collides = products[members[j]].getName().hashCode() == hash;
+                }
+                if (collides) {
+                    overflow.put(products[members[i]].getName(), members[i]);
+                } else {
+                    members[to++] = members[i];
+                }
+            }
+            if (from == to) {
+                continue;
+            }
+            if (to - from > claimed.length) {
+                claimed = new int[to - from];
+            }
+            for (int seed = 1; ; seed++) {
+                if (seed > MAX_SEED) {
+                    for (int i = from; i < to; i++) {
+                        overflow.put(products[members[i]].getName(), members[i]);
+                    }
+                    break;
+                }
+                int placed = 0;
+                for (int i = from; i < to; i++) {
+                    int slot = slot(products[members[i]].getName().hashCode(), seed);
+                    if (slots[slot] != -1) {
+                        break;
+                    }
+                    slots[slot] = members[i];
+                    claimed[placed++] = slot;
+                }
+                if (placed == to - from) {
+                    seeds[bucket] = seed;
+                    break;
+                }
+                for (int i = 0; i < placed; i++) {
+                    slots[claimed[i]] = -1;
+                }
+            }
+        }
+    }
+    
+    public synchronized int register(Product product) {
+        if (idOf(product.getName()) >= 0) {
+            throw new IllegalArgumentException("Duplicate product name: " + product.getName());
+        }
+        int id = size;
+        Product[] products = this.products;
+        if (id == products.length) {
+            products = Arrays.copyOf(products, id * 2);
+            this.products = products;
+        }
+        product.assignCatalogId(id);
+        products[id] = product;
+        overflow.put(product.getName(), id);
+        size = id + 1;
+        return id;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public Product get(int id) {
+        // size first: register publishes a grown array before the size that needs it, never after.
+        int n = size;
+        Product[] products = this.products;
+        return products[Objects.checkIndex(id, n)];
+    }
+    
+    public int idOf(String name) {
+        int hash = name.hashCode();
+        int id = slots[slot(hash, seeds[Math.floorMod(mix(hash), seeds.length)])];
+        if (id >= 0 && products[id].getName().equals(name)) {
+            return id;
+        }
+        Integer overflowId = overflow.get(name);
+        return overflowId == null ? -1 : overflowId;
+    }
+    
+    public Product byName(String name) {
+        int id = idOf(name);
+        return id < 0 ? null : products[id];
+    }
+    
+    private int slot(int hash, int seed) {
+        return mix(hash ^ seed * 0x9E3779B9) & slotMask;
+    }
+    
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+}
+
+class StockStripes {
+    // Sixteen ints keep each stripe on its own 64-byte cache line.
+    private static final int PAD = 16;
+    
+    private final AtomicIntegerArray counts;
+    private final int mask;
+    private final int refillChunk;
+    // Low 32 bits: moves in flight; high 32 bits: moves finished. Readers retry if it changes under them.
+    private final AtomicLong moves = new AtomicLong();
+    
+    public StockStripes(int stripeCount, int refillChunk) {
+        if (stripeCount <= 0 || refillChunk <= 0) {
+            throw new IllegalArgumentException("Stripe count and refill chunk must be positive");
+        }
+        int size = Integer.highestOneBit(stripeCount - 1) << 1;
+        if (size == 0) {
+            size = 1;
+        }
+        this.counts = new AtomicIntegerArray(size * PAD);
+        this.mask = size - 1;
+        this.refillChunk = refillChunk;
+    }
+    
+    public int getRefillChunk() {
+        return refillChunk;
+    }
+    
+    public int slot() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 40 & mask) * PAD;
+    }
+    
+    public boolean tryTake(int slot, int amount) {
+        int available = counts.get(slot);
+        while (available >= amount) {
+            int witness = counts.compareAndExchange(slot, available, available - amount);
+            if (witness == available) {
+                return true;
+            }
+            available = witness;
+        }
+        return false;
+    }
+    
+    public void add(int slot, int amount) {
+        counts.getAndAdd(slot, amount);
+    }
+    
+    public int drainAll() {
+        int drained = 0;
+        for (int slot = 0; slot < counts.length(); slot += PAD) {
+            drained += counts.getAndSet(slot, 0);
+        }
+        return drained;
+    }
+    
+    public int total() {
+        int total = 0;
+        for (int slot = 0; slot < counts.length(); slot += PAD) {
+            total += counts.get(slot);
+        }
+        return total;
+    }
+    
+    // Brackets a transfer that takes several atomics, such as a refill from the central count.
+    public void beginMove() {
+        moves.incrementAndGet();
+    }
+    
+    public void endMove() {
+        moves.addAndGet((1L << 32) - 1);
+    }
+    
+    public long awaitNoMoves() {
+        long state = moves.get();
+        while ((int) state != 0) {
+            Thread.yield();
+            state = moves.get();
+        }
+        return state;
+    }
+    
+    public boolean movesUnchanged(long state) {
+        return moves.get() == state;
+    }
+}
+
+class PerishableProduct extends Product {
+    private int expiryEpochDay;
+    
+    public PerishableProduct(String name, long price, int quantity, LocalDate expirationDate) {
+        this(name, price, quantity, BusinessClock.epochDay(Objects.requireNonNull(expirationDate)));
+    }
+    
+    public PerishableProduct(String name, long price, int quantity, int expiryEpochDay) {
+        super(name, price, quantity);
+        this.expiryEpochDay = expiryEpochDay;
+    }
+    
+    @Override
+    public int getExpiryEpochDay() {
+        return expiryEpochDay;
+    }
+    
+    @Override
+    public boolean requiresShipping() {
+        return true;
+    }
+}
+
+class NonPerishableProduct extends Product {
+    private boolean needsShipping;
+    
+    public NonPerishableProduct(String name, long price, int quantity, boolean needsShipping) {
+        super(name, price, quantity);
+        this.needsShipping = needsShipping;
+    }
+    
+    @Override
+    public boolean requiresShipping() {
+        return needsShipping;
+    }
+}
+
+class ShippableProduct extends Product implements Shippable {
+    private double weight;
+    private int expiryEpochDay;
+    
+    public ShippableProduct(String name, long price, int quantity, double weight, LocalDate expirationDate) {
+        this(name, price, quantity, weight, BusinessClock.epochDay(expirationDate));
+    }
+    
+    public ShippableProduct(String name, long price, int quantity, double weight, int expiryEpochDay) {
+        super(name, price, quantity);
+        this.weight = weight;
+        this.expiryEpochDay = expiryEpochDay;
+    }
+    
+    public ShippableProduct(String name, long price, int quantity, double weight) {
+        this(name, price, quantity, weight, BusinessClock.NO_EXPIRY);
+    }
+    
+    @Override
+    public double getWeight() {
+        return weight;
+    }
+    
+    @Override
+    public int getExpiryEpochDay() {
+        return expiryEpochDay;
+    }
+    
+    @Override
+    public boolean requiresShipping() {
+        return true;
+    }
+}
+
+class MappedCatalog {
+    static final int MAGIC = 0x50434154;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int RECORD_BYTES = 96;
+    static final int NAME_BYTES = 64;
+    
+    static final byte PERISHABLE = 0;
+    static final byte NON_PERISHABLE = 1;
+    static final byte SHIPPABLE = 2;
+    
+    // Record layout. QUANTITY stays 4-byte aligned so it can be updated with CAS.
+    static final int QUANTITY = 0;
+    static final int KIND = 4;
+    static final int NEEDS_SHIPPING = 5;
+    static final int NAME_LENGTH = 6;
+    static final int PRICE = 8;
+    static final int EXPIRY = 16;
+    static final int WEIGHT = 24;
+    static final int NAME = 32;
+    
+    // One mapping per 2^24 records keeps every chunk under the 2 GB MappedByteBuffer limit.
+    private static final int CHUNK_SHIFT = 24;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+    
+    private static final VarHandle CHUNK_VIEWS = MethodHandles.arrayElementVarHandle(Product[][].class);
+    private static final VarHandle VIEW = MethodHandles.arrayElementVarHandle(Product[].class);
+    
+    private final ByteBuffer[] chunks;
+    private final int size;
+    // One view per record, created on first access, so a record always maps to the same Product instance
+    // and identity-keyed structures (cart lines, expiry caches, per-customer grouping) see one product.
+    private final Product[][] views;
+    
+    private MappedCatalog(ByteBuffer[] chunks, int size) {
+        this.chunks = chunks;
+        this.size = size;
+        this.views = new Product[chunks.length][];
+    }
+    
+    // Records are mapped copy-on-write: stock changes live in memory and never rewrite the catalog file.
+    public static MappedCatalog open(Path file) throws IOException {
+        // PRIVATE mappings need a writable channel even though the file itself is never modified.
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+                                       .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(12) != RECORD_BYTES) {
+                throw new IOException("Not a product catalog: " + file);
+            }
+            int size = header.getInt(8);
+            if (channel.size() < HEADER_BYTES + (long) size * RECORD_BYTES) {
+                throw new IOException("Truncated product catalog: " + file);
+            }
+            ByteBuffer[] chunks = new ByteBuffer[(size + CHUNK_MASK) >>> CHUNK_SHIFT];
+            for (int i = 0; i < chunks.length; i++) {
+                long first = (long) i << CHUNK_SHIFT;
+                long records = Math.min(size - first, 1L << CHUNK_SHIFT);
+                chunks[i] = channel.map(FileChannel.MapMode.PRIVATE, HEADER_BYTES + first * RECORD_BYTES,
+                                        records * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new MappedCatalog(chunks, size);
+        }
+    }
+    
+    public static void write(Path file, List<? extends Product> products) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(products.size()).putInt(RECORD_BYTES).clear();
+            writeFully(channel, header);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_BYTES * 4096).order(ByteOrder.LITTLE_ENDIAN);
+            for (Product product : products) {
+                if (!buffer.hasRemaining()) {
+                    buffer.flip();
+                    writeFully(channel, buffer);
+                    buffer.clear();
+                }
+                encode(buffer, product);
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+        }
+    }
+    
+    private static void encode(ByteBuffer buffer, Product product) {
+        byte[] name = product.getName().getBytes(StandardCharsets.UTF_8);
+        if (name.length > NAME_BYTES) {
+            throw new IllegalArgumentException("Product name longer than " + NAME_BYTES + " bytes: " + product.getName());
+        }
+        byte kind = product instanceof Shippable ? SHIPPABLE
+                  : product.getExpiryEpochDay() != BusinessClock.NO_EXPIRY ? PERISHABLE : NON_PERISHABLE;
+        int start = buffer.position();
+        buffer.putInt(start + QUANTITY, product.getQuantity());
+        buffer.put(start + KIND, kind);
+        buffer.put(start + NEEDS_SHIPPING, (byte) (product.requiresShipping() ? 1 : 0));
+        buffer.putShort(start + NAME_LENGTH, (short) name.length);
+        buffer.putLong(start + PRICE, product.getPrice());
+        buffer.putInt(start + EXPIRY, product.getExpiryEpochDay());
+        buffer.putDouble(start + WEIGHT, product instanceof Shippable ? ((Shippable) product).getWeight() : 0);
+        buffer.put(start + NAME, name);
+        for (int i = start + NAME + name.length; i < start + RECORD_BYTES; i++) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.position(start + RECORD_BYTES);
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public Product get(int index) {
+        Objects.checkIndex(index, size);
+        int chunkIndex = index >>> CHUNK_SHIFT;
+        Product[] chunkViews = (Product[]) CHUNK_VIEWS.getAcquire(views, chunkIndex);
+        if (chunkViews == null) {
+            Product[] created = new Product[chunks[chunkIndex].capacity() / RECORD_BYTES];
+            chunkViews = (Product[]) CHUNK_VIEWS.compareAndExchangeRelease(views, chunkIndex, null, created);
+            if (chunkViews == null) {
+                chunkViews = created;
+            }
+        }
+        int record = index & CHUNK_MASK;
+        Product view = (Product) VIEW.getAcquire(chunkViews, record);
+        if (view == null) {
+            ByteBuffer chunk = chunks[chunkIndex];
+            int offset = record * RECORD_BYTES;
+            Product created = chunk.get(offset + KIND) == SHIPPABLE ? new MappedShippableProduct(chunk, offset)
+                                                                     : new MappedProduct(chunk, offset);
+            view = (Product) VIEW.compareAndExchangeRelease(chunkViews, record, null, created);
+            if (view == null) {
+                view = created;
+            }
+        }
+        return view;
+    }
+}
+
+class MappedProduct extends Product {
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    
+    protected final ByteBuffer chunk;
+    protected final int offset;
+    
+    MappedProduct(ByteBuffer chunk, int offset) {
+        super(null, 0, 0);
+        this.chunk = chunk;
+        this.offset = offset;
+    }
+    
+    @Override
+    public String getName() {
+        String name = this.name;
+        if (name == null) {
+            byte[] bytes = new byte[chunk.getShort(offset + MappedCatalog.NAME_LENGTH)];
+            chunk.get(offset + MappedCatalog.NAME, bytes);
+            name = new String(bytes, StandardCharsets.UTF_8);
+            this.name = name;
+        }
+        return name;
+    }
+    
+    @Override
+    public long getPrice() {
+        return chunk.getLong(offset + MappedCatalog.PRICE);
+    }
+    
+    @Override
+    public int getExpiryEpochDay() {
+        return chunk.getInt(offset + MappedCatalog.EXPIRY);
+    }
+    
+    @Override
+    public boolean requiresShipping() {
+        return chunk.get(offset + MappedCatalog.NEEDS_SHIPPING) != 0;
+    }
+    
+    @Override
+    public int getQuantity() {
+        return (int) INT.getVolatile(chunk, offset + MappedCatalog.QUANTITY);
+    }
+    
+    @Override
+    public void setQuantity(int quantity) {
+        INT.setVolatile(chunk, offset + MappedCatalog.QUANTITY, quantity);
+    }
+    
+    @Override
+    public boolean tryReserve(int amount) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Reservation amount must be positive: " + amount);
+        }
+        int available = getQuantity();
+        while (available >= amount) {
+            int witness = (int) INT.compareAndExchange(chunk, offset + MappedCatalog.QUANTITY, available,
+                                                       available - amount);
+            if (witness == available) {
+                return true;
+            }
+            available = witness;
+        }
+        return false;
+    }
+    
+    @Override
+    public void release(int amount) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Release amount must be positive: " + amount);
+        }
+        INT.getAndAdd(chunk, offset + MappedCatalog.QUANTITY, amount);
+    }
+    
+    // Stock lives in the mapped record and is updated there with CAS, so there is nothing to stripe.
+    @Override
+    public boolean enableStriping(int stripeCount, int refillChunk) {
+        return false;
+    }
+}
+
+class MappedShippableProduct extends MappedProduct implements Shippable {
+    MappedShippableProduct(ByteBuffer chunk, int offset) {
+        super(chunk, offset);
+    }
+    
+    @Override
+    public double getWeight() {
+        return chunk.getDouble(offset + MappedCatalog.WEIGHT);
+    }
+}
+
+class CatalogImporter {
+    // Rows are "kind,name,price,quantity,weight,expiry,needsShipping"; kind is perishable, nonperishable or shippable,
+    // price is in major units with up to two decimals, weight is in grams and expiry is yyyy-MM-dd.
+    // Fields a kind does not use may be left empty.
+    private static final long LEAF_BYTES = 4L << 20;
+    private static final int FIELDS = 7;
+    
+    static final class Rejection {
+        private final long line;
+        private final String reason;
+        
+        Rejection(long line, String reason) {
+            this.line = line;
+            this.reason = reason;
+        }
+        
+        public long getLine() {
+            return line;
+        }
+        
+        public String getReason() {
+            return reason;
+        }
+    }
+    
+    static final class ImportReport {
+        private final List<Product> products;
+        private final List<Rejection> rejections;
+        private final long elapsedNanos;
+        
+        ImportReport(List<Product> products, List<Rejection> rejections, long elapsedNanos) {
+            this.products = products;
+            this.rejections = rejections;
+            this.elapsedNanos = elapsedNanos;
+        }
+        
+        public List<Product> getProducts() {
+            return products;
+        }
+        
+        public List<Rejection> getRejections() {
+            return rejections;
+        }
+        
+        public long getRows() {
+            return products.size() + rejections.size();
+        }
+        
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : getRows() * 1e9 / elapsedNanos;
+        }
+    }
+    
+    private static final class Chunk {
+        final List<Product> products = new ArrayList<>();
+        final List<Rejection> rejections = new ArrayList<>();
+        long lines;
+    }
+    
+    private CatalogImporter() {
+    }
+    
+    public static ImportReport importCsv(Path file) throws IOException {
+        return importCsv(file, ForkJoinPool.commonPool());
+    }
+    
+    public static ImportReport importCsv(Path file, ForkJoinPool pool) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Chunk chunk = pool.invoke(new ParseTask(channel, 0, channel.size()));
+            return new ImportReport(chunk.products, chunk.rejections, System.nanoTime() - start);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    private static final class ParseTask extends RecursiveTask<Chunk> {
+        private static final long serialVersionUID = 1L;
+        
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        
+        ParseTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+        
+        @Override
+        protected Chunk compute() {
+            try {
+                if (end - start > LEAF_BYTES) {
+                    long split = nextLineStart(channel, start + (end - start) / 2, end);
+                    if (split < end) {
+                        ParseTask right = new ParseTask(channel, split, end);
+                        right.fork();
+                        Chunk left = new ParseTask(channel, start, split).compute();
+                        return merge(left, right.join());
+                    }
+                }
+                return parse(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), start == 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+    
+    private static long nextLineStart(FileChannel channel, long from, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = from;
+        while (position < end) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read && position + i < end; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return end;
+    }
+    
+    private static Chunk merge(Chunk left, Chunk right) {
+        left.products.addAll(right.products);
+        for (Rejection rejection : right.rejections) {
+            left.rejections.add(new Rejection(rejection.getLine() + left.lines, rejection.getReason()));
+        }
+        left.lines += right.lines;
+        return left;
+    }
+    
+    private static Chunk parse(ByteBuffer buffer, boolean firstChunk) {
+        Chunk chunk = new Chunk();
+        byte[] line = new byte[256];
+        int[] fieldStart = new int[FIELDS];
+        int[] fieldEnd = new int[FIELDS];
+        while (buffer.hasRemaining()) {
+            int length = 0;
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    break;
+                }
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[length++] = b;
+            }
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            long lineNumber = ++chunk.lines;
+            if (length == 0 || (firstChunk && lineNumber == 1 && startsWith(line, length, "kind,"))) {
+                continue;
+            }
+            String reason = split(line, length, fieldStart, fieldEnd);
+            Product product = reason == null ? toProduct(line, fieldStart, fieldEnd) : null;
+            if (product == null) {
+                chunk.rejections.add(new Rejection(lineNumber, reason != null ? reason : rejection(line, fieldStart, fieldEnd)));
+            } else {
+                chunk.products.add(product);
+            }
+        }
+        return chunk;
+    }
+    
+    private static String split(byte[] line, int length, int[] fieldStart, int[] fieldEnd) {
+        int field = 0;
+        fieldStart[0] = 0;
+        for (int i = 0; i < length; i++) {
+            if (line[i] == ',') {
+                if (field == FIELDS - 1) {
+                    return "Too many fields";
+                }
+                fieldEnd[field++] = i;
+                fieldStart[field] = i + 1;
+            }
+        }
+        fieldEnd[field] = length;
+        return field == FIELDS - 1 ? null : "Expected " + FIELDS + " fields but found " + (field + 1);
+    }
+    
+    private static Product toProduct(byte[] line, int[] start, int[] end) {
+        String name = new String(line, start[1], end[1] - start[1], StandardCharsets.UTF_8);
+        long price = parsePrice(line, start[2], end[2]);
+        long quantity = parseLong(line, start[3], end[3]);
+        if (name.isEmpty() || price < 0 || quantity < 0 || quantity > Integer.MAX_VALUE) {
+            return null;
+        }
+        int expiry = start[5] == end[5] ? BusinessClock.NO_EXPIRY : parseEpochDay(line, start[5], end[5]);
+        if (expiry == Integer.MIN_VALUE) {
+            return null;
+        }
+        if (matches(line, start[0], end[0], "perishable")) {
+            return expiry == BusinessClock.NO_EXPIRY ? null : new PerishableProduct(name, price, (int) quantity, expiry);
+        } else if (matches(line, start[0], end[0], "nonperishable")) {
+            boolean needsShipping = matches(line, start[6], end[6], "true");
+            if (!needsShipping && !matches(line, start[6], end[6], "false")) {
+                return null;
+            }
+            return new NonPerishableProduct(name, price, (int) quantity, needsShipping);
+        } else if (matches(line, start[0], end[0], "shippable")) {
+            long grams = parseLong(line, start[4], end[4]);
+            if (grams < 0) {
+                return null;
+            }
+            return new ShippableProduct(name, price, (int) quantity, grams / 1000.0, expiry);
+        }
+        return null;
+    }
+    
+    // Only runs for rejected rows, so the happy path never builds a message.
+    private static String rejection(byte[] line, int[] start, int[] end) {
+        if (!matches(line, start[0], end[0], "perishable") && !matches(line, start[0], end[0], "nonperishable")
+                && !matches(line, start[0], end[0], "shippable")) {
+            return "Unknown product kind";
+        }
+        if (start[1] == end[1]) {
+            return "Missing name";
+        }
+        if (parsePrice(line, start[2], end[2]) < 0) {
+            return "Invalid price";
+        }
+        long quantity = parseLong(line, start[3], end[3]);
+        if (quantity < 0 || quantity > Integer.MAX_VALUE) {
+            return "Invalid quantity";
+        }
+        if (start[5] != end[5] && parseEpochDay(line, start[5], end[5]) == Integer.MIN_VALUE) {
+            return "Invalid expiry date";
+        }
+        if (matches(line, start[0], end[0], "perishable")) {
+            return "Perishable product needs an expiry date";
+        }
+        if (matches(line, start[0], end[0], "shippable")) {
+            return "Invalid weight";
+        }
+        return "Invalid needsShipping flag";
+    }
+    
+    private static long parseLong(byte[] line, int from, int to) {
+        if (from == to || to - from > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+    
+    private static long parsePrice(byte[] line, int from, int to) {
+        int dot = to;
+        for (int i = from; i < to; i++) {
+            if (line[i] == '.') {
+                dot = i;
+                break;
+            }
+        }
+        long major = parseLong(line, from, dot);
+        if (major < 0 || major > Long.MAX_VALUE / Money.MINOR_PER_MAJOR) {
+            return -1;
+        }
+        if (dot == to) {
+            return major * Money.MINOR_PER_MAJOR;
+        }
+        int digits = to - dot - 1;
+        long minor = parseLong(line, dot + 1, to);
+        if (digits > 2 || minor < 0) {
+            return -1;
+        }
+        return major * Money.MINOR_PER_MAJOR + (digits == 1 ? minor * 10 : minor);
+    }
+    
+    // yyyy-MM-dd straight to an epoch day, using the days-from-civil algorithm instead of LocalDate.parse.
+    static int parseEpochDay(byte[] line, int from, int to) {
+        if (to - from != 10 || line[from + 4] != '-' || line[from + 7] != '-') {
+            return Integer.MIN_VALUE;
+        }
+        long year = parseLong(line, from, from + 4);
+        long month = parseLong(line, from + 5, from + 7);
+        long day = parseLong(line, from + 8, from + 10);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth((int) year, (int) month)) {
+            return Integer.MIN_VALUE;
+        }
+        long y = month <= 2 ? year - 1 : year;
+        long era = y / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return (int) (era * 146097 + dayOfEra - 719468);
+    }
+    
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+            return leap ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+    
+    private static boolean matches(byte[] line, int from, int to, String literal) {
+        if (to - from != literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (line[from + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean startsWith(byte[] line, int length, String literal) {
+        return length >= literal.length() && matches(line, 0, literal.length(), literal);
+    }
+}
+
+class OffHeapAccountTable {
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    // Slot layout: account id, then balance. An id of 0 marks an empty slot.
+    private static final int SLOT_BYTES = 16;
+    private static final int BALANCE = 8;
+    private static final long EMPTY = 0;
+    // One direct buffer is indexed by int: at most 2^26 slots (1 GiB), i.e. about 33.5M expected accounts.
+    private static final int MAX_SLOTS = Integer.MAX_VALUE / SLOT_BYTES + 1 >>> 1;
+    
+    private final ByteBuffer slots;
+    private final int mask;
+    private final AtomicInteger size = new AtomicInteger();
+    
+    public OffHeapAccountTable(int expectedAccounts) {
+        int capacity = Integer.highestOneBit(Math.max(2, expectedAccounts * 2 - 1)) << 1;
+        if (capacity <= 0 || capacity > MAX_SLOTS) {
+            throw new IllegalArgumentException("Too many accounts for one table: " + expectedAccounts);
+        }
+        this.slots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES).order(ByteOrder.nativeOrder());
+        this.mask = capacity - 1;
+    }
+    
+    public int size() {
+        return size.get();
+    }
+    
+    public int open(long id, long balance) {
+        if (id == EMPTY) {
+            throw new IllegalArgumentException("Account id 0 is reserved");
+        }
+        if (size.get() > mask - (mask >>> 2)) {
+            throw new IllegalStateException("Account table is full");
+        }
+        for (int slot = hash(id), probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+            int offset = slot * SLOT_BYTES;
+            long existing = (long) LONG.compareAndExchange(slots, offset, EMPTY, id);
+            if (existing == EMPTY) {
+                LONG.setVolatile(slots, offset + BALANCE, balance);
+                size.incrementAndGet();
+                return slot;
+            }
+            if (existing == id) {
+                return slot;
+            }
+        }
+        throw new IllegalStateException("Account table is full");
+    }
+    
+    public int find(long id) {
+        if (id == EMPTY) {
+            return -1;
+        }
+        for (int slot = hash(id), probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+            long existing = (long) LONG.getVolatile(slots, slot * SLOT_BYTES);
+            if (existing == id) {
+                return slot;
+            }
+            if (existing == EMPTY) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+    
+    public long idAt(int slot) {
+        return (long) LONG.getVolatile(slots, slot * SLOT_BYTES);
+    }
+    
+    public long balance(int slot) {
+        return (long) LONG.getVolatile(slots, slot * SLOT_BYTES + BALANCE);
+    }
+    
+    public void setBalance(int slot, long balance) {
+        LONG.setVolatile(slots, slot * SLOT_BYTES + BALANCE, balance);
+    }
+    
+    public boolean tryDebit(int slot, long amount) {
+        int offset = slot * SLOT_BYTES + BALANCE;
+        long balance = (long) LONG.getVolatile(slots, offset);
+        while (balance >= amount) {
+            long witness = (long) LONG.compareAndExchange(slots, offset, balance, balance - amount);
+            if (witness == balance) {
+                return true;
+            }
+            balance = witness;
+        }
+        return false;
+    }
+    
+    public void credit(int slot, long amount) {
+        LONG.getAndAdd(slots, slot * SLOT_BYTES + BALANCE, amount);
+    }
+    
+    private int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
+
+class Customer {
+    // Null for table-backed customers, whose name is their account id.
+    private String name;
+    private long balance;
+    private final OffHeapAccountTable accounts;
+    private final int slot;
+    
+    public Customer(String name, long balance) {
+        this.name = name;
+        this.balance = balance;
+        this.accounts = null;
+        this.slot = -1;
+    }
+    
+    // A thin handle: only the table and slot live here; the balance and id live off-heap.
+    public Customer(OffHeapAccountTable accounts, long id) {
+        int slot = accounts.find(id);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Unknown account: " + id);
+        }
+        this.accounts = accounts;
+        this.slot = slot;
+    }
+    
+    public String getName() {
+        return accounts == null ? name : Long.toString(accounts.idAt(slot));
+    }
+    
+    public long getBalance() {
+        return accounts == null ? balance : accounts.balance(slot);
+    }
+    
+    public void setBalance(long balance) {
+        if (accounts == null) {
+            synchronized (this) {
+                this.balance = balance;
+            }
+        } else {
+            accounts.setBalance(slot, balance);
+        }
+    }
+    
+    public void deductBalance(long amount) {
+        if (accounts == null) {
+            synchronized (this) {
+                this.balance -= amount;
+            }
+        } else {
+            accounts.credit(slot, -amount);
+        }
+    }
+    
+    public boolean tryDebit(long amount) {
+        if (accounts != null) {
+            return accounts.tryDebit(slot, amount);
+        }
+        synchronized (this) {
+            if (balance < amount) {
+                return false;
+            }
+            balance -= amount;
+            return true;
+        }
+    }
+    
+    public void credit(long amount) {
+        if (accounts == null) {
+            synchronized (this) {
+                this.balance += amount;
+            }
+        } else {
+            accounts.credit(slot, amount);
+        }
+    }
+}
+
+class CartHold {
+    static final int ACTIVE = 0;
+    static final int COMMITTED = 1;
+    static final int EXPIRED = 2;
+    static final int RELEASED = 3;
+    
+    private final Product product;
+    private final int quantity;
+    private final long deadlineMillis;
+    private final HierarchicalTimingWheel wheel;
+    private final AtomicInteger state = new AtomicInteger(ACTIVE);
+    
+    // Bucket links, guarded by the owning wheel.
+    CartHold prev;
+    CartHold next;
+    int level = -1;
+    int slot;
+    
+    CartHold(Product product, int quantity, long deadlineMillis, HierarchicalTimingWheel wheel) {
+        this.product = product;
+        this.quantity = quantity;
+        this.deadlineMillis = deadlineMillis;
+        this.wheel = wheel;
+    }
+    
+    public Product getProduct() {
+        return product;
+    }
+    
+    public int getQuantity() {
+        return quantity;
+    }
+    
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+    
+    public boolean isActive() {
+        return state.get() == ACTIVE;
+    }
+    
+    public boolean commit() {
+        if (state.compareAndSet(ACTIVE, COMMITTED)) {
+            wheel.cancel(this);
+            return true;
+        }
+        return state.get() == COMMITTED;
+    }
+    
+    // Committed stock is sold and stays sold; use rollback to undo a checkout that failed after committing.
+    public void release() {
+        if (state.compareAndSet(ACTIVE, RELEASED)) {
+            wheel.cancel(this);
+            product.release(quantity);
+        } else {
+            state.compareAndSet(EXPIRED, RELEASED);
+        }
+    }
+    
+    void rollback() {
+        int previous = state.get();
+        while ((previous == ACTIVE || previous == COMMITTED) && !state.compareAndSet(previous, RELEASED)) {
+            previous = state.get();
+        }
+        if (previous == ACTIVE) {
+            wheel.cancel(this);
+        }
+        if (previous == ACTIVE || previous == COMMITTED) {
+            product.release(quantity);
+        }
+    }
+    
+    boolean expire() {
+        return state.compareAndSet(ACTIVE, EXPIRED);
+    }
+}
+
+class HierarchicalTimingWheel {
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    
+    private final long tickMillis;
+    private final CartHold[][] buckets = new CartHold[LEVELS][WHEEL_SIZE];
+    private long currentTick;
+    private int size;
+    
+    public HierarchicalTimingWheel(long tickMillis, long startMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+        this.currentTick = startMillis / tickMillis;
+    }
+    
+    public synchronized void schedule(CartHold hold) {
+        long deadlineTick = Math.max(hold.getDeadlineMillis() / tickMillis, currentTick + 1);
+        place(hold, deadlineTick);
+        size++;
+    }
+    
+    public synchronized void cancel(CartHold hold) {
+        if (hold.level >= 0) {
+            unlink(hold);
+            size--;
+        }
+    }
+    
+    public synchronized int size() {
+        return size;
+    }
+    
+    public int advance(long nowMillis) {
+        List<CartHold> expired = new ArrayList<>();
+        synchronized (this) {
+            long targetTick = nowMillis / tickMillis;
+            while (currentTick < targetTick) {
+                currentTick++;
+                cascade();
+                int slot = (int) (currentTick & WHEEL_MASK);
+                CartHold hold = buckets[0][slot];
+                buckets[0][slot] = null;
+                while (hold != null) {
+                    CartHold next = hold.next;
+                    detach(hold);
+                    size--;
+                    if (hold.expire()) {
+                        expired.add(hold);
+                    }
+                    hold = next;
+                }
+            }
+        }
+        returnToStock(expired);
+        return expired.size();
+    }
+    
+    private void cascade() {
+        int top = 0;
+        while (top < LEVELS - 1 && (currentTick & ((1L << (WHEEL_BITS * (top + 1))) - 1)) == 0) {
+            top++;
+        }
+        for (int level = top; level >= 1; level--) {
+            int slot = (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+            CartHold hold = buckets[level][slot];
+            buckets[level][slot] = null;
+            while (hold != null) {
+                CartHold next = hold.next;
+                detach(hold);
+                place(hold, Math.max(hold.getDeadlineMillis() / tickMillis, currentTick));
+                hold = next;
+            }
+        }
+    }
+    
+    private void place(CartHold hold, long deadlineTick) {
+        long delta = deadlineTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((deadlineTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        CartHold head = buckets[level][slot];
+        hold.level = level;
+        hold.slot = slot;
+        hold.prev = null;
+        hold.next = head;
+        if (head != null) {
+            head.prev = hold;
+        }
+        buckets[level][slot] = hold;
+    }
+    
+    private void unlink(CartHold hold) {
+        if (hold.prev != null) {
+            hold.prev.next = hold.next;
+        } else {
+            buckets[hold.level][hold.slot] = hold.next;
+        }
+        if (hold.next != null) {
+            hold.next.prev = hold.prev;
+        }
+        detach(hold);
+    }
+    
+    private void detach(CartHold hold) {
+        hold.prev = null;
+        hold.next = null;
+        hold.level = -1;
+    }
+    
+    private static void returnToStock(List<CartHold> expired) {
+        Map<Product, int[]> totals = new IdentityHashMap<>();
+        for (CartHold hold : expired) {
+            totals.computeIfAbsent(hold.getProduct(), p -> new int[1])[0] += hold.getQuantity();
+        }
+        for (Map.Entry<Product, int[]> entry : totals.entrySet()) {
+            entry.getKey().release(entry.getValue()[0]);
+        }
+    }
+}
+
+class ReservationLedger implements AutoCloseable {
+    private final long ttlMillis;
+    private final long tickMillis;
+    private final HierarchicalTimingWheel wheel;
+    private ScheduledExecutorService reaper;
+    
+    public ReservationLedger(long ttlMillis, long tickMillis) {
+        this.ttlMillis = ttlMillis;
+        this.tickMillis = tickMillis;
+        this.wheel = new HierarchicalTimingWheel(tickMillis, System.currentTimeMillis());
+    }
+    
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+    
+    public CartHold hold(Product product, int quantity) {
+        if (!product.tryReserve(quantity)) {
+            return null;
+        }
+        CartHold hold = new CartHold(product, quantity, System.currentTimeMillis() + ttlMillis, wheel);
+        wheel.schedule(hold);
+        return hold;
+    }
+    
+    public int openHolds() {
+        return wheel.size();
+    }
+    
+    public int reapExpired() {
+        return reapExpired(System.currentTimeMillis());
+    }
+    
+    public int reapExpired(long nowMillis) {
+        return wheel.advance(nowMillis);
+    }
+    
+    public synchronized void start() {
+        if (reaper != null) {
+            return;
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cart-hold-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleAtFixedRate(this::reapExpired, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public synchronized void close() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+        }
+    }
+}
+
+class CartItem {
+    private Product product;
+    private int quantity;
+    private List<CartHold> holds;
+    // Position in the owning cart's line list, kept up to date by Cart so a line is removed without a scan.
+    int line;
+    
+    public CartItem(Product product, int quantity) {
+        this(product, quantity, null);
+    }
+    
+    public CartItem(Product product, int quantity, CartHold hold) {
+        this.product = product;
+        this.quantity = quantity;
+        if (hold != null) {
+            this.holds = new ArrayList<>(1);
+            holds.add(hold);
+        }
+    }
+    
+    public Product getProduct() {
+        return product;
+    }
+    
+    void merge(int quantity, CartHold hold) {
+        this.quantity = Math.addExact(this.quantity, quantity);
+        if (hold != null) {
+            if (holds == null) {
+                holds = new ArrayList<>(2);
+            }
+            holds.add(hold);
+        }
+    }
+    
+    boolean commitHolds() {
+        if (holds != null) {
+            for (CartHold hold : holds) {
+                if (!hold.commit()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    // Stock that was reserved without a hold is returned directly; held stock goes back through its holds.
+    void release() {
+        returnStock(false);
+    }
+    
+    // Also returns stock of committed holds, for a checkout that failed after committing them.
+    void rollback() {
+        returnStock(true);
+    }
+    
+    private void returnStock(boolean committedToo) {
+        int unheld = quantity;
+        if (holds != null) {
+            for (CartHold hold : holds) {
+                if (committedToo) {
+                    hold.rollback();
+                } else {
+                    hold.release();
+                }
+                unheld -= hold.getQuantity();
+            }
+        }
+        if (unheld > 0) {
+            product.release(unheld);
+        }
+    }
+    
+    public int getQuantity() {
+        return quantity;
+    }
+    
+    public long getTotalPrice() {
+        return Money.times(product.getPrice(), quantity);
+    }
+}
+
+class AddResult {
+    enum Code {
+        OK,
+        PRODUCT_EXPIRED,
+        INSUFFICIENT_QUANTITY,
+        INVALID_QUANTITY
+    }
+    
+    static final AddResult OK = new AddResult(Code.OK, null, 0, 0);
+    
+    private final Code code;
+    private final Product product;
+    private final int available;
+    private final int requested;
+    
+    private AddResult(Code code, Product product, int available, int requested) {
+        this.code = code;
+        this.product = product;
+        this.available = available;
+        this.requested = requested;
+    }
+    
+    static AddResult productExpired(Product product) {
+        return new AddResult(Code.PRODUCT_EXPIRED, product, 0, 0);
+    }
+    
+    static AddResult insufficientQuantity(Product product, int available, int requested) {
+        return new AddResult(Code.INSUFFICIENT_QUANTITY, product, available, requested);
+    }
+    
+    static AddResult invalidQuantity(Product product, int requested) {
+        return new AddResult(Code.INVALID_QUANTITY, product, 0, requested);
+    }
+    
+    public boolean isSuccess() {
+        return code == Code.OK;
+    }
+    
+    public Code getCode() {
+        return code;
+    }
+    
+    public String getMessage() {
+        switch (code) {
+            case PRODUCT_EXPIRED:
+                return "Cannot add expired product: " + product.getName();
+            case INSUFFICIENT_QUANTITY:
+                return "Insufficient quantity for product: " + product.getName() + 
+                       ". Available: " + available + ", Requested: " + requested;
+            case INVALID_QUANTITY:
+                return "Quantity must be positive for product: " + product.getName() + ". Requested: " + requested;
+            default:
+                return "OK";
+        }
+    }
+}
+
+class Cart implements OrderLines {
+    private List<CartItem> items;
+    private final List<CartItem> itemsView;
+    private final Map<Product, CartItem> lines = new IdentityHashMap<>();
+    private ReservationLedger ledger;
+    private long subtotal;
+    private double shippingWeight;
+    private int shippableLines;
+    
+    public Cart() {
+        this(null);
+    }
+    
+    public Cart(ReservationLedger ledger) {
+        this.items = new ArrayList<>();
+        this.itemsView = Collections.unmodifiableList(items);
+        this.ledger = ledger;
+    }
+    
+    public AddResult add(Product product, int quantity) {
+        // Checked before any reservation: tryReserve rejects non-positive amounts by throwing.
+        if (quantity <= 0) {
+            return AddResult.invalidQuantity(product, quantity);
+        }
+        if (product.isExpired()) {
+            return AddResult.productExpired(product);
+        }
+        
+        CartHold hold = null;
+        boolean reserved;
+        if (ledger != null) {
+            hold = ledger.hold(product, quantity);
+            reserved = hold != null;
+        } else {
+            reserved = product.tryReserve(quantity);
+        }
+        if (!reserved) {
+            return AddResult.insufficientQuantity(product, product.getQuantity(), quantity);
+        }
+        
+        CartItem item = lines.get(product);
+        if (item == null) {
+            item = new CartItem(product, quantity, hold);
+            item.line = items.size();
+            items.add(item);
+            lines.put(product, item);
+            if (isShippable(product)) {
+                shippableLines++;
+            }
+        } else {
+            item.merge(quantity, hold);
+        }
+        subtotal = Math.addExact(subtotal, Money.times(product.getPrice(), quantity));
+        if (isShippable(product)) {
+            shippingWeight += ((Shippable) product).getWeight() * quantity;
+        }
+        return AddResult.OK;
+    }
+    
+    public boolean remove(Product product) {
+        CartItem item = lines.remove(product);
+        if (item == null) {
+            return false;
+        }
+        // Swap-remove: the last line takes the removed line's slot, so removal stays O(1) on large carts.
+        CartItem last = items.remove(items.size() - 1);
+        if (last != item) {
+            items.set(item.line, last);
+            last.line = item.line;
+        }
+        item.release();
+        subtotal -= item.getTotalPrice();
+        if (isShippable(product)) {
+            shippableLines--;
+            shippingWeight = shippableLines == 0 ? 0 : shippingWeight - ((Shippable) product).getWeight() * item.getQuantity();
+        }
+        return true;
+    }
+    
+    private static boolean isShippable(Product product) {
+        return product.requiresShipping() && product instanceof Shippable;
+    }
+    
+    public boolean commitHolds() {
+        for (CartItem item : items) {
+            if (!item.commitHolds()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public void release() {
+        for (CartItem item : items) {
+            item.release();
+        }
+        clear();
+    }
+    
+    // Undoes a checkout that failed after its holds were committed: every unit goes back to stock.
+    void rollback() {
+        for (CartItem item : items) {
+            item.rollback();
+        }
+        clear();
+    }
+    
+    // Called once the order is committed: the lines are sold, so they leave the cart without touching stock.
+    void completeCheckout() {
+        clear();
+    }
+    
+    private void clear() {
+        items.clear();
+        lines.clear();
+        subtotal = 0;
+        shippingWeight = 0;
+        shippableLines = 0;
+    }
+    
+    public List<CartItem> getItems() {
+        return itemsView;
+    }
+    
+    @Override
+    public int getLineCount() {
+        return items.size();
+    }
+    
+    @Override
+    public Product getProduct(int line) {
+        return items.get(line).getProduct();
+    }
+    
+    @Override
+    public int getQuantity(int line) {
+        return items.get(line).getQuantity();
+    }
+    
+    @Override
+    public long getLineTotal(int line) {
+        return items.get(line).getTotalPrice();
+    }
+    
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+    
+    public long getSubtotal() {
+        return subtotal;
+    }
+    
+    public double getShippingWeight() {
+        return shippingWeight;
+    }
+    
+    public boolean hasShippableItems() {
+        return shippableLines > 0;
+    }
+}
+
+interface CartLineVisitor {
+    void visit(Product product, int quantity, long unitPrice);
+}
+
+// Indexed view of an order's lines. The checkout steps read carts through it, so a struct-of-arrays cart
+// is walked without building a CartItem per line.
+interface OrderLines {
+    int getLineCount();
+    
+    Product getProduct(int line);
+    
+    int getQuantity(int line);
+    
+    long getLineTotal(int line);
+    
+    static OrderLines of(List<CartItem> items) {
+        return new OrderLines() {
+            @Override
+            public int getLineCount() {
+                return items.size();
+            }
+            
+            @Override
+            public Product getProduct(int line) {
+                return items.get(line).getProduct();
+            }
+            
+            @Override
+            public int getQuantity(int line) {
+                return items.get(line).getQuantity();
+            }
+            
+            @Override
+            public long getLineTotal(int line) {
+                return items.get(line).getTotalPrice();
+            }
+        };
+    }
+}
+
+class CompactCart implements OrderLines {
+    // Distinct products; lines refer to them by their index in this table.
+    private Product[] products = new Product[16];
+    private final Map<Product, Integer> productIndex = new IdentityHashMap<>();
+    private int[] productIds;
+    private int[] quantities;
+    private long[] unitPrices;
+    private int size;
+    
+    public CompactCart() {
+        this(16);
+    }
+    
+    public CompactCart(int expectedLines) {
+        int capacity = Math.max(1, expectedLines);
+        this.productIds = new int[capacity];
+        this.quantities = new int[capacity];
+        this.unitPrices = new long[capacity];
+    }
+    
+    public AddResult add(Product product, int quantity) {
+        // Checked before any reservation: tryReserve rejects non-positive amounts by throwing.
+        if (quantity <= 0) {
+            return AddResult.invalidQuantity(product, quantity);
+        }
+        if (product.isExpired()) {
+            return AddResult.productExpired(product);
+        }
+        if (!product.tryReserve(quantity)) {
+            return AddResult.insufficientQuantity(product, product.getQuantity(), quantity);
+        }
+        if (size == productIds.length) {
+            int capacity = size * 2;
+            productIds = Arrays.copyOf(productIds, capacity);
+            quantities = Arrays.copyOf(quantities, capacity);
+            unitPrices = Arrays.copyOf(unitPrices, capacity);
+        }
+        productIds[size] = intern(product);
+        quantities[size] = quantity;
+        unitPrices[size] = product.getPrice();
+        size++;
+        return AddResult.OK;
+    }
+    
+    private int intern(Product product) {
+        Integer id = productIndex.get(product);
+        if (id != null) {
+            return id;
+        }
+        int next = productIndex.size();
+        if (next == products.length) {
+            products = Arrays.copyOf(products, next * 2);
+        }
+        products[next] = product;
+        productIndex.put(product, next);
+        return next;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    @Override
+    public int getLineCount() {
+        return size;
+    }
+    
+    @Override
+    public Product getProduct(int line) {
+        return products[productIds[Objects.checkIndex(line, size)]];
+    }
+    
+    @Override
+    public int getQuantity(int line) {
+        return quantities[Objects.checkIndex(line, size)];
+    }
+    
+    public long getUnitPrice(int line) {
+        return unitPrices[Objects.checkIndex(line, size)];
+    }
+    
+    // Priced at the unit price captured when the line was added, like getSubtotal.
+    @Override
+    public long getLineTotal(int line) {
+        return Money.times(getUnitPrice(line), quantities[line]);
+    }
+    
+    public long getSubtotal() {
+        long subtotal = 0;
+        for (int i = 0; i < size; i++) {
+            subtotal = Math.addExact(subtotal, Money.times(unitPrices[i], quantities[i]));
+        }
+        return subtotal;
+    }
+    
+    public double getShippingWeight() {
+        double weight = 0;
+        for (int i = 0; i < size; i++) {
+            Product product = products[productIds[i]];
+            if (product.requiresShipping() && product instanceof Shippable) {
+                weight += ((Shippable) product).getWeight() * quantities[i];
+            }
+        }
+        return weight;
+    }
+    
+    public void forEachLine(CartLineVisitor visitor) {
+        for (int i = 0; i < size; i++) {
+            visitor.visit(products[productIds[i]], quantities[i], unitPrices[i]);
+        }
+    }
+    
+    Product firstExpired() {
+        for (int i = 0; i < productIndex.size(); i++) {
+            if (products[i].isExpired()) {
+                return products[i];
+            }
+        }
+        return null;
+    }
+    
+    public void release() {
+        for (int i = 0; i < size; i++) {
+            products[productIds[i]].release(quantities[i]);
+        }
+        clear();
+    }
+    
+    // Called once the order is committed: the lines are sold, so they leave the cart without touching stock.
+    void completeCheckout() {
+        clear();
+    }
+    
+    private void clear() {
+        Arrays.fill(products, 0, productIndex.size(), null);
+        productIndex.clear();
+        size = 0;
+    }
+}
+
+class ShipmentLine {
+    private final Shippable item;
+    private final int count;
+    
+    public ShipmentLine(Shippable item, int count) {
+        this.item = item;
+        this.count = count;
+    }
+    
+    public Shippable getItem() {
+        return item;
+    }
+    
+    public int getCount() {
+        return count;
+    }
+    
+    public double getTotalWeight() {
+        return item.getWeight() * count;
+    }
+}
+
+final class ShippingRateTable {
+    static final int DEFAULT_ZONE = 0;
+    private static final int MAX_CACHED_BUCKETS = 1 << 16;
+    
+    private final int zones;
+    private final int tiers;
+    private final int[] tierUpperGrams;
+    // Zone-major: the entry for (zone, tier) is at zone * tiers + tier.
+    private final long[] ratePerKg;
+    private final long[] surcharge;
+    // Quote cache: rate and surcharge per (zone, weight bucket), at zone * cachedBuckets + bucket.
+    private final int bucketGrams;
+    private final int cachedBuckets;
+    private final long[] cachedRate;
+    private final long[] cachedSurcharge;
+    
+    private ShippingRateTable(int[] tierUpperGrams, long[][] ratePerKg, long[][] surcharge) {
+        this.zones = ratePerKg.length;
+        this.tiers = tierUpperGrams.length + 1;
+        this.tierUpperGrams = tierUpperGrams.clone();
+        this.ratePerKg = new long[zones * tiers];
+        this.surcharge = new long[zones * tiers];
+        for (int zone = 0; zone < zones; zone++) {
+            System.arraycopy(ratePerKg[zone], 0, this.ratePerKg, zone * tiers, tiers);
+            if (surcharge != null) {
+                System.arraycopy(surcharge[zone], 0, this.surcharge, zone * tiers, tiers);
+            }
+        }
+        
+        // Buckets as wide as the gcd of the tier bounds never straddle a bound.
+        int gcd = 0;
+        for (int bound : tierUpperGrams) {
+            gcd = gcd(gcd, bound);
+        }
+        this.bucketGrams = gcd == 0 ? 1000 : gcd;
+        int lastBound = tierUpperGrams.length == 0 ? 0 : tierUpperGrams[tierUpperGrams.length - 1];
+        this.cachedBuckets = Math.min(lastBound / bucketGrams + 1, MAX_CACHED_BUCKETS);
+        this.cachedRate = new long[zones * cachedBuckets];
+        this.cachedSurcharge = new long[zones * cachedBuckets];
+        for (int bucket = 0; bucket < cachedBuckets; bucket++) {
+            int tier = tierOf((long) bucket * bucketGrams);
+            for (int zone = 0; zone < zones; zone++) {
+                cachedRate[zone * cachedBuckets + bucket] = this.ratePerKg[zone * tiers + tier];
+                cachedSurcharge[zone * cachedBuckets + bucket] = this.surcharge[zone * tiers + tier];
+            }
+        }
+    }
+    
+    public static ShippingRateTable flat(long ratePerKg) {
+        return new ShippingRateTable(new int[0], new long[][] {{ratePerKg}}, null);
+    }
+    
+    // tierUpperGrams holds the inclusive upper bound of every tier but the last, which is open-ended.
+    // ratePerKg and surcharge are indexed [zone][tier]; surcharge may be null.
+    public static ShippingRateTable compile(int[] tierUpperGrams, long[][] ratePerKg, long[][] surcharge) {
+        for (int i = 0; i < tierUpperGrams.length; i++) {
+            if (tierUpperGrams[i] <= 0 || (i > 0 && tierUpperGrams[i] <= tierUpperGrams[i - 1])) {
+                throw new IllegalArgumentException("Tier bounds must be positive and ascending");
+            }
+        }
+        if (ratePerKg.length == 0 || (surcharge != null && surcharge.length != ratePerKg.length)) {
+            throw new IllegalArgumentException("Rate and surcharge tables must cover the same zones");
+        }
+        int tiers = tierUpperGrams.length + 1;
+        for (int zone = 0; zone < ratePerKg.length; zone++) {
+            if (ratePerKg[zone].length != tiers || (surcharge != null && surcharge[zone].length != tiers)) {
+                throw new IllegalArgumentException("Zone " + zone + " must define " + tiers + " tiers");
+            }
+        }
+        return new ShippingRateTable(tierUpperGrams, ratePerKg, surcharge);
+    }
+    
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+    
+    private int tierOf(long grams) {
+        if (grams > Integer.MAX_VALUE) {
+            return tiers - 1;
+        }
+        int index = Arrays.binarySearch(tierUpperGrams, (int) grams);
+        return index >= 0 ? index : -index - 1;
+    }
+    
+    public int getZoneCount() {
+        return zones;
+    }
+    
+    public long quote(int zone, double weightKg) {
+        Objects.checkIndex(zone, zones);
+        if (weightKg <= 0) {
+            return 0;
+        }
+        long grams = Math.round(weightKg * 1000);
+        long bucket = (grams + bucketGrams - 1) / bucketGrams;
+        long rate;
+        long extra;
+        if (bucket < cachedBuckets) {
+            int index = zone * cachedBuckets + (int) bucket;
+            rate = cachedRate[index];
+            extra = cachedSurcharge[index];
+        } else {
+            int index = zone * tiers + tierOf(grams);
+            rate = ratePerKg[index];
+            extra = surcharge[index];
+        }
+        return Math.addExact(Money.perKg(rate, weightKg), extra);
+    }
+}
+
+class Parcel {
+    private final List<ShipmentLine> lines = new ArrayList<>(2);
+    private final long maxGrams;
+    private long grams;
+    
+    Parcel(long maxGrams) {
+        this.maxGrams = maxGrams;
+    }
+    
+    long remainingGrams() {
+        return maxGrams - grams;
+    }
+    
+    void add(Shippable item, int count, long unitGrams) {
+        lines.add(new ShipmentLine(item, count));
+        grams += unitGrams * count;
+    }
+    
+    public List<ShipmentLine> getLines() {
+        return Collections.unmodifiableList(lines);
+    }
+    
+    public double getWeight() {
+        return grams / 1000.0;
+    }
+    
+    // Only a single unit that is heavier than the limit on its own ends up in an overweight parcel.
+    public boolean isOverweight() {
+        return grams > maxGrams;
+    }
+}
+
+class ParcelPlan {
+    private final List<Parcel> parcels;
+    
+    ParcelPlan(List<Parcel> parcels) {
+        this.parcels = parcels;
+    }
+    
+    public List<Parcel> getParcels() {
+        return Collections.unmodifiableList(parcels);
+    }
+    
+    public int getParcelCount() {
+        return parcels.size();
+    }
+    
+    public long getShippingFee(int zone) {
+        ShippingRateTable rates = ShippingService.getRateTable();
+        long fee = 0;
+        for (int i = 0; i < parcels.size(); i++) {
+            fee = Math.addExact(fee, rates.quote(zone, parcels.get(i).getWeight()));
+        }
+        return fee;
+    }
+}
+
+class ParcelBuilder {
+    private final long maxParcelGrams;
+    
+    public ParcelBuilder(double maxParcelKg) {
+        if (!(maxParcelKg > 0)) {
+            throw new IllegalArgumentException("Parcel weight limit must be positive: " + maxParcelKg);
+        }
+        this.maxParcelGrams = Math.round(maxParcelKg * 1000);
+    }
+    
+    public ParcelPlan pack(List<CartItem> items) {
+        return pack(OrderLines.of(items));
+    }
+    
+    // First-fit-decreasing over whole lines: each line drops as many units as fit into every open parcel
+    // in turn, then fills new parcels in bulk, which places units exactly where unit-by-unit FFD would.
+    public ParcelPlan pack(OrderLines lines) {
+        int lineCount = 0;
+        Shippable[] lineItems = new Shippable[lines.getLineCount()];
+        long[] unitGrams = new long[lines.getLineCount()];
+        int[] counts = new int[lines.getLineCount()];
+        for (int i = 0; i < lines.getLineCount(); i++) {
+            Product product = lines.getProduct(i);
+            if (product.requiresShipping() && product instanceof Shippable) {
+                lineItems[lineCount] = (Shippable) product;
+                unitGrams[lineCount] = Math.round(lineItems[lineCount].getWeight() * 1000);
+                counts[lineCount] = lines.getQuantity(i);
+                lineCount++;
+            }
+        }
+        
+        // Heaviest first, ties in line order, sorted as primitives: unit grams in the high bits and the
+        // inverted line index below. Units past 2^32 g only ever ship alone, so clamping them is harmless.
+        long[] order = new long[lineCount];
+        for (int i = 0; i < lineCount; i++) {
+            order[i] = Math.min(unitGrams[i], 0xFFFFFFFFL) << 31 | (Integer.MAX_VALUE - i);
+        }
+        Arrays.sort(order);
+        long lightestGrams = lineCount == 0 ? 0 : unitGrams[Integer.MAX_VALUE - (int) (order[0] & Integer.MAX_VALUE)];
+        
+        List<Parcel> parcels = new ArrayList<>();
+        // Parcels before this index have no room left even for the lightest unit in the order.
+        int firstOpen = 0;
+        for (int rank = lineCount - 1; rank >= 0; rank--) {
+            int line = Integer.MAX_VALUE - (int) (order[rank] & Integer.MAX_VALUE);
+            Shippable item = lineItems[line];
+            long grams = unitGrams[line];
+            int remaining = counts[line];
+            if (grams > maxParcelGrams) {
+                for (int i = 0; i < remaining; i++) {
+                    Parcel parcel = new Parcel(maxParcelGrams);
+                    parcel.add(item, 1, grams);
+                    parcels.add(parcel);
+                }
+                continue;
+            }
+            for (int i = firstOpen; i < parcels.size() && remaining > 0; i++) {
+                int fit = grams == 0 ? remaining : (int) Math.min(remaining, parcels.get(i).remainingGrams() / grams);
+                if (fit > 0) {
+                    parcels.get(i).add(item, fit, grams);
+                    remaining -= fit;
+                }
+            }
+            int perParcel = grams == 0 ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, maxParcelGrams / grams);
+            while (remaining > 0) {
+                int fit = Math.min(remaining, perParcel);
+                Parcel parcel = new Parcel(maxParcelGrams);
+                parcel.add(item, fit, grams);
+                parcels.add(parcel);
+                remaining -= fit;
+            }
+            while (firstOpen < parcels.size() && parcels.get(firstOpen).remainingGrams() < lightestGrams) {
+                firstOpen++;
+            }
+        }
+        return new ParcelPlan(parcels);
+    }
+}
+
+class ShippingService {
+    private static volatile ShippingRateTable rates = ShippingRateTable.flat(Money.ofMajor(10));
+    // Null ships every order as a single package.
+    private static volatile ParcelBuilder parcelBuilder;
+    
+    // Readers pick up the new table on their next quote; quotes already in progress finish on the old one.
+    public static void setRateTable(ShippingRateTable rates) {
+        ShippingService.rates = Objects.requireNonNull(rates);
+    }
+    
+    public static ShippingRateTable getRateTable() {
+        return rates;
+    }
+    
+    public static void setParcelBuilder(ParcelBuilder parcelBuilder) {
+        ShippingService.parcelBuilder = parcelBuilder;
+    }
+    
+    public static long calculateShippingFee(Cart cart) {
+        if (!cart.hasShippableItems()) {
+            return calculateShippingFee(0);
+        }
+        return calculateShippingFee(cart, cart.getShippingWeight());
+    }
+    
+    public static long calculateShippingFee(OrderLines lines, double shippingWeight) {
+        ParcelBuilder builder = parcelBuilder;
+        if (builder == null) {
+            return calculateShippingFee(shippingWeight);
+        }
+        return builder.pack(lines).getShippingFee(ShippingRateTable.DEFAULT_ZONE);
+    }
+    
+    public static long calculateShippingFee(List<ShipmentLine> lines) {
+        return calculateShippingFee(totalWeight(lines));
+    }
+    
+    public static long calculateShippingFee(double totalWeight) {
+        return calculateShippingFee(ShippingRateTable.DEFAULT_ZONE, totalWeight);
+    }
+    
+    public static long calculateShippingFee(int zone, double totalWeight) {
+        return rates.quote(zone, totalWeight);
+    }
+    
+    public static double totalWeight(List<ShipmentLine> lines) {
+        double totalWeight = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            totalWeight += lines.get(i).getTotalWeight();
+        }
+        return totalWeight;
+    }
+    
+    public static void processShipment(List<ShipmentLine> lines) {
+        processShipment(lines, ECommerceSystem.getReceiptSink());
+    }
+    
+    public static void processShipment(List<ShipmentLine> lines, ReceiptSink sink) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        sink.shipmentNotice(lines);
+    }
+}
+
+interface ReceiptSink extends AutoCloseable {
+    void shipmentNotice(List<ShipmentLine> lines);
+    
+    // Renders the shipment notice (if any) and the receipt of one order as a single unit.
+    void checkoutReceipt(OrderLines lines, long subtotal, long shippingFee, long amount, long balanceAfter);
+    
+    // Blocks until everything submitted before the call has been written.
+    void flush();
+    
+    @Override
+    void close();
+}
+
+final class DiscardingReceiptSink implements ReceiptSink {
+    static final DiscardingReceiptSink INSTANCE = new DiscardingReceiptSink();
+    
+    private DiscardingReceiptSink() {
+    }
+    
+    @Override
+    public void shipmentNotice(List<ShipmentLine> lines) {
+    }
+    
+    @Override
+    public void checkoutReceipt(OrderLines lines, long subtotal, long shippingFee, long amount,
+                                long balanceAfter) {
+    }
+    
+    @Override
+    public void flush() {
+    }
+    
+    @Override
+    public void close() {
+    }
+}
+
+final class ReceiptFormat {
+    private static final String NL = System.lineSeparator();
+    
+    private ReceiptFormat() {
+    }
+    
+    static void shipmentNotice(StringBuilder buffer, List<ShipmentLine> lines) {
+        buffer.append("** Shipment notice **").append(NL);
+        double totalWeight = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            ShipmentLine line = lines.get(i);
+            buffer.append(line.getCount()).append("x ").append(line.getItem().getName()).append(' ')
+                  .append(line.getTotalWeight() * 1000).append('g').append(NL);
+            totalWeight += line.getTotalWeight();
+        }
+        buffer.append("Total package weight ").append(totalWeight).append("kg").append(NL);
+    }
+    
+    // Same text as shipmentNotice(List), read straight off the order's shippable lines; nothing if none ship.
+    private static void shipmentNotice(StringBuilder buffer, OrderLines lines) {
+        double totalWeight = 0;
+        boolean shipping = false;
+        for (int i = 0; i < lines.getLineCount(); i++) {
+            Product product = lines.getProduct(i);
+            if (!product.requiresShipping() || !(product instanceof Shippable)) {
+                continue;
+            }
+            if (!shipping) {
+                buffer.append("** Shipment notice **").append(NL);
+                shipping = true;
+            }
+            double weight = ((Shippable) product).getWeight() * lines.getQuantity(i);
+            buffer.append(lines.getQuantity(i)).append("x ").append(product.getName()).append(' ')
+                  .append(weight * 1000).append('g').append(NL);
+            totalWeight += weight;
+        }
+        if (shipping) {
+            buffer.append("Total package weight ").append(totalWeight).append("kg").append(NL);
+        }
+    }
+    
+    static void checkoutReceipt(StringBuilder buffer, OrderLines lines, long subtotal, long shippingFee,
+                                long amount, long balanceAfter) {
+        shipmentNotice(buffer, lines);
+        buffer.append("** Checkout receipt **").append(NL);
+        for (int i = 0; i < lines.getLineCount(); i++) {
+            buffer.append(lines.getQuantity(i)).append("x ").append(lines.getProduct(i).getName()).append(' ');
+            Money.appendTo(buffer, lines.getLineTotal(i)).append(NL);
+        }
+        buffer.append("----------------------").append(NL);
+        Money.appendTo(buffer.append("Subtotal "), subtotal).append(NL);
+        Money.appendTo(buffer.append("Shipping "), shippingFee).append(NL);
+        Money.appendTo(buffer.append("Amount "), amount).append(NL);
+        Money.appendTo(buffer.append("Customer balance after payment: "), balanceAfter).append(NL);
+        buffer.append("=================================================").append(NL);
+    }
+}
+
+// Writes each receipt synchronously with one print call, so nothing is pending when the caller returns.
+class PrintStreamReceiptSink implements ReceiptSink {
+    private final PrintStream out;
+    private final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() -> new StringBuilder(512));
+    
+    public PrintStreamReceiptSink(PrintStream out) {
+        this.out = out;
+    }
+    
+    @Override
+    public void shipmentNotice(List<ShipmentLine> lines) {
+        StringBuilder buffer = buffers.get();
+        buffer.setLength(0);
+        ReceiptFormat.shipmentNotice(buffer, lines);
+        out.print(buffer);
+    }
+    
+    @Override
+    public void checkoutReceipt(OrderLines lines, long subtotal, long shippingFee, long amount,
+                                long balanceAfter) {
+        StringBuilder buffer = buffers.get();
+        buffer.setLength(0);
+        ReceiptFormat.checkoutReceipt(buffer, lines, subtotal, shippingFee, amount, balanceAfter);
+        out.print(buffer);
+    }
+    
+    @Override
+    public void flush() {
+        out.flush();
+    }
+    
+    @Override
+    public void close() {
+        out.flush();
+    }
+}
+
+// Lets producers hand work to a consumer thread while close() races them: once close() returns, every
+// enter() that succeeded has also exited, and every later enter() fails.
+final class CloseGate {
+    // Producers between enter() and exit(); the sign bit is set once the gate is closed.
+    private final AtomicInteger inFlight = new AtomicInteger();
+    
+    boolean enter() {
+        return inFlight.getAndUpdate(count -> count < 0 ? count : count + 1) >= 0;
+    }
+    
+    void exit() {
+        inFlight.decrementAndGet();
+    }
+    
+    void close() {
+        inFlight.getAndUpdate(count -> count | Integer.MIN_VALUE);
+        while (inFlight.get() != Integer.MIN_VALUE) {
+            Thread.yield();
+        }
+    }
+}
+
+// Opt-in: install with ECommerceSystem.setReceiptSink. A shutdown hook drains receipts still queued for the
+// daemon writer thread when the JVM exits normally.
+class AsyncReceiptSink implements ReceiptSink {
+    private static final int MAX_BATCH = 256;
+    private static final int INITIAL_CAPACITY = 512;
+    // Buffers that grew past this are dropped instead of pooled so one huge order does not pin memory.
+    private static final int MAX_POOLED_CAPACITY = 16 * 1024;
+    
+    private final OutputStream out;
+    private final BlockingQueue<StringBuilder> pool;
+    private final BlockingQueue<StringBuilder> ready = new LinkedBlockingQueue<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final CloseGate gate = new CloseGate();
+    private final Thread writer;
+    private final Thread drainOnExit = new Thread(this::close, "receipt-writer-drain");
+    private volatile long written;
+    private volatile IOException failure;
+    private volatile boolean closed;
+    
+    public AsyncReceiptSink(OutputStream out) {
+        this(out, 64);
+    }
+    
+    public AsyncReceiptSink(OutputStream out, int pooledBuffers) {
+        this.out = out;
+        this.pool = new ArrayBlockingQueue<>(pooledBuffers);
+        this.writer = new Thread(this::writeLoop, "receipt-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(drainOnExit);
+    }
+    
+    @Override
+    public void shipmentNotice(List<ShipmentLine> lines) {
+        StringBuilder buffer = acquire();
+        ReceiptFormat.shipmentNotice(buffer, lines);
+        submit(buffer);
+    }
+    
+    @Override
+    public void checkoutReceipt(OrderLines lines, long subtotal, long shippingFee, long amount,
+                                long balanceAfter) {
+        StringBuilder buffer = acquire();
+        ReceiptFormat.checkoutReceipt(buffer, lines, subtotal, shippingFee, amount, balanceAfter);
+        submit(buffer);
+    }
+    
+    private StringBuilder acquire() {
+        StringBuilder buffer = pool.poll();
+        return buffer != null ? buffer : new StringBuilder(INITIAL_CAPACITY);
+    }
+    
+    private void submit(StringBuilder buffer) {
+        if (!gate.enter()) {
+            throw new IllegalStateException("Receipt sink is closed");
+        }
+        try {
+            submitted.incrementAndGet();
+            ready.add(buffer);
+        } finally {
+            gate.exit();
+        }
+    }
+    
+    @Override
+    public void flush() {
+        long target = submitted.get();
+        synchronized (this) {
+            while (written < target && writer.isAlive()) {
+                try {
+                    wait(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        IOException failure = this.failure;
+        if (failure != null) {
+            throw new UncheckedIOException("Receipt write failed", failure);
+        }
+    }
+    
+    private void writeLoop() {
+        List<StringBuilder> batch = new ArrayList<>(MAX_BATCH);
+        ByteBuffer bytes = ByteBuffer.allocate(64 * 1024);
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                                                       .onMalformedInput(CodingErrorAction.REPLACE)
+                                                       .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        while (!closed || !ready.isEmpty()) {
+            try {
+                StringBuilder first = ready.poll(10, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                ready.drainTo(batch, MAX_BATCH - 1);
+            } catch (InterruptedException e) {
+                gate.close();
+                closed = true;
+                ready.drainTo(batch);
+            }
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    encode(batch.get(i), encoder, bytes);
+                }
+                drain(bytes);
+                out.flush();
+            } catch (IOException e) {
+                failure = e;
+                bytes.clear();
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                StringBuilder buffer = batch.get(i);
+                if (buffer.capacity() <= MAX_POOLED_CAPACITY) {
+                    buffer.setLength(0);
+                    pool.offer(buffer);
+                }
+            }
+            synchronized (this) {
+                written += batch.size();
+                notifyAll();
+            }
+            batch.clear();
+        }
+    }
+    
+    private void encode(StringBuilder text, CharsetEncoder encoder, ByteBuffer bytes) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        while (encoder.encode(chars, bytes, true).isOverflow()) {
+            drain(bytes);
+        }
+        while (encoder.flush(bytes).isOverflow()) {
+            drain(bytes);
+        }
+    }
+    
+    private void drain(ByteBuffer bytes) throws IOException {
+        out.write(bytes.array(), 0, bytes.position());
+        bytes.clear();
+    }
+    
+    @Override
+    public void close() {
+        // Closing the gate first means every accepted receipt is queued before the writer sees closed.
+        gate.close();
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (Thread.currentThread() != drainOnExit) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(drainOnExit);
+            } catch (IllegalStateException e) {
+                // Already shutting down; the hook drains the writer.
+            }
+        }
+    }
+}
+
+interface ManifestHandler {
+    // Called on the dispatcher thread; the manifest is only valid for the duration of the call.
+    void onManifest(ShipmentManifest manifest);
+}
+
+class ShipmentManifest {
+    private final ShipmentDispatcher.Slot[] slots;
+    private final int mask;
+    private long start;
+    private int size;
+    
+    ShipmentManifest(ShipmentDispatcher.Slot[] slots) {
+        this.slots = slots;
+        this.mask = slots.length - 1;
+    }
+    
+    void reset(long start, int size) {
+        this.start = start;
+        this.size = size;
+    }
+    
+    private ShipmentDispatcher.Slot slot(int shipment) {
+        Objects.checkIndex(shipment, size);
+        return slots[(int) (start + shipment) & mask];
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public String getCustomerName(int shipment) {
+        return slot(shipment).customerName;
+    }
+    
+    public int getLineCount(int shipment) {
+        return slot(shipment).lineCount;
+    }
+    
+    public Shippable getItem(int shipment, int line) {
+        ShipmentDispatcher.Slot slot = slot(shipment);
+        return slot.items[Objects.checkIndex(line, slot.lineCount)];
+    }
+    
+    public int getCount(int shipment, int line) {
+        ShipmentDispatcher.Slot slot = slot(shipment);
+        return slot.counts[Objects.checkIndex(line, slot.lineCount)];
+    }
+    
+    public double getWeight(int shipment) {
+        return slot(shipment).weight;
+    }
+    
+    public double getTotalWeight() {
+        double total = 0;
+        for (int i = 0; i < size; i++) {
+            total += slot(i).weight;
+        }
+        return total;
+    }
+}
+
+class ShipmentDispatcher implements AutoCloseable {
+    static final class Slot {
+        // Sequence of the shipment stored here, written last by the producer to publish it.
+        volatile long sequence = -1;
+        String customerName;
+        Shippable[] items = new Shippable[4];
+        int[] counts = new int[4];
+        int lineCount;
+        double weight;
+    }
+    
+    private final Slot[] slots;
+    private final int mask;
+    private final int maxManifest;
+    private final ManifestHandler handler;
+    private final ShipmentManifest manifest;
+    // Next sequence to claim; the sign bit is set by close() so claiming and closing cannot interleave.
+    private final AtomicLong claimed = new AtomicLong();
+    private final Thread consumer;
+    // Every shipment below this sequence has been handed to the handler and its slot may be reused.
+    private volatile long released;
+    private volatile RuntimeException failure;
+    
+    public ShipmentDispatcher(int capacity, int maxManifest, ManifestHandler handler) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        if (maxManifest < 1) {
+            throw new IllegalArgumentException("Manifest size must be positive: " + maxManifest);
+        }
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = capacity - 1;
+        this.maxManifest = Math.min(maxManifest, capacity);
+        this.handler = Objects.requireNonNull(handler);
+        this.manifest = new ShipmentManifest(slots);
+        this.consumer = new Thread(this::consume, "shipment-dispatcher");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+    
+    // Returns false without claiming a slot when none of the items needs shipping.
+    public boolean publish(String customerName, OrderLines lines) {
+        int lineCount = 0;
+        for (int i = 0; i < lines.getLineCount(); i++) {
+            if (isShippable(lines.getProduct(i))) {
+                lineCount++;
+            }
+        }
+        if (lineCount == 0) {
+            return false;
+        }
+        
+        long sequence = claimed.getAndUpdate(next -> next < 0 ? next : next + 1);
+        if (sequence < 0) {
+            throw new IllegalStateException("Shipment dispatcher is closed");
+        }
+        // Backpressure: wait for the consumer to free the slot written one lap earlier. A close() after the
+        // claim still drains this sequence, so only a dead consumer can leave the wait unfinished.
+        for (int spins = 0; sequence - released >= slots.length; spins++) {
+            if (spins < 100) {
+                Thread.onSpinWait();
+            } else if (!consumer.isAlive()) {
+                throw new IllegalStateException("Shipment dispatcher consumer has stopped");
+            } else {
+                LockSupport.parkNanos(50_000);
+            }
+        }
+        
+        Slot slot = slots[(int) sequence & mask];
+        if (slot.items.length < lineCount) {
+            slot.items = new Shippable[lineCount];
+            slot.counts = new int[lineCount];
+        }
+        int line = 0;
+        double weight = 0;
+        for (int i = 0; i < lines.getLineCount(); i++) {
+            if (isShippable(lines.getProduct(i))) {
+                Shippable shippable = (Shippable) lines.getProduct(i);
+                slot.items[line] = shippable;
+                slot.counts[line] = lines.getQuantity(i);
+                weight += shippable.getWeight() * lines.getQuantity(i);
+                line++;
+            }
+        }
+        slot.customerName = customerName;
+        slot.lineCount = lineCount;
+        slot.weight = weight;
+        slot.sequence = sequence;
+        return true;
+    }
+    
+    private static boolean isShippable(Product product) {
+        return product.requiresShipping() && product instanceof Shippable;
+    }
+    
+    private void consume() {
+        long next = 0;
+        while (true) {
+            int available = 0;
+            while (available < maxManifest && slots[(int) (next + available) & mask].sequence == next + available) {
+                available++;
+            }
+            if (available == 0) {
+                long state = claimed.get();
+                if (state < 0 && (state & Long.MAX_VALUE) == next) {
+                    return;
+                }
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+            manifest.reset(next, available);
+            try {
+                handler.onManifest(manifest);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            for (int i = 0; i < available; i++) {
+                Slot slot = slots[(int) (next + i) & mask];
+                Arrays.fill(slot.items, 0, slot.lineCount, null);
+                slot.customerName = null;
+            }
+            next += available;
+            released = next;
+        }
+    }
+    
+    // Blocks until every shipment published before the call has been handed to the handler.
+    public void awaitDispatched() {
+        long target = claimed.get() & Long.MAX_VALUE;
+        while (released < target && consumer.isAlive()) {
+            LockSupport.parkNanos(100_000);
+        }
+        RuntimeException failure = this.failure;
+        if (failure != null) {
+            this.failure = null;
+            throw failure;
+        }
+    }
+    
+    @Override
+    public void close() {
+        claimed.getAndUpdate(next -> next | Long.MIN_VALUE);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+class CheckoutRequest {
+    private final Customer customer;
+    private final Cart cart;
+    
+    public CheckoutRequest(Customer customer, Cart cart) {
+        this.customer = customer;
+        this.cart = cart;
+    }
+    
+    public Customer getCustomer() {
+        return customer;
+    }
+    
+    public Cart getCart() {
+        return cart;
+    }
+}
+
+class CheckoutResult {
+    enum Status {
+        SUCCESS,
+        EMPTY_CART,
+        PRODUCT_EXPIRED,
+        INSUFFICIENT_BALANCE,
+        RESERVATION_EXPIRED,
+        NOT_RECORDED
+    }
+    
+    private static final CheckoutResult EMPTY_CART = new CheckoutResult(Status.EMPTY_CART, 0, 0, null);
+    
+    private final Status status;
+    private final long totalAmount;
+    private final long available;
+    private final Product product;
+    
+    private CheckoutResult(Status status, long totalAmount, long available, Product product) {
+        this.status = status;
+        this.totalAmount = totalAmount;
+        this.available = available;
+        this.product = product;
+    }
+    
+    static CheckoutResult success(long totalAmount) {
+        return new CheckoutResult(Status.SUCCESS, totalAmount, 0, null);
+    }
+    
+    static CheckoutResult emptyCart() {
+        return EMPTY_CART;
+    }
+    
+    static CheckoutResult productExpired(Product product) {
+        return new CheckoutResult(Status.PRODUCT_EXPIRED, 0, 0, product);
+    }
+    
+    static CheckoutResult insufficientBalance(long totalAmount, long available) {
+        return new CheckoutResult(Status.INSUFFICIENT_BALANCE, totalAmount, available, null);
+    }
+    
+    static CheckoutResult reservationExpired(long totalAmount) {
+        return new CheckoutResult(Status.RESERVATION_EXPIRED, totalAmount, 0, null);
+    }
+    
+    static CheckoutResult notRecorded(long totalAmount) {
+        return new CheckoutResult(Status.NOT_RECORDED, totalAmount, 0, null);
+    }
+    
+    public boolean isSuccess() {
+        return status == Status.SUCCESS;
+    }
+    
+    public Status getStatus() {
+        return status;
+    }
+    
+    public long getTotalAmount() {
+        return totalAmount;
+    }
+    
+    public String getMessage() {
+        switch (status) {
+            case EMPTY_CART:
+                return "Cart is empty";
+            case PRODUCT_EXPIRED:
+                return "Product expired: " + product.getName();
+            case INSUFFICIENT_BALANCE:
+                return "Customer's balance is insufficient. Required: " + Money.format(totalAmount) + 
+                       ", Available: " + Money.format(available);
+            case RESERVATION_EXPIRED:
+                return "Cart reservation expired";
+            case NOT_RECORDED:
+                return "Order could not be recorded; no payment was taken";
+            default:
+                return "OK";
+        }
+    }
+}
+
+class CheckoutEffect {
+    private final String customerName;
+    private final long amount;
+    private final String[] productNames;
+    private final int[] quantities;
+    
+    public CheckoutEffect(String customerName, long amount, String[] productNames, int[] quantities) {
+        this.customerName = customerName;
+        this.amount = amount;
+        this.productNames = productNames;
+        this.quantities = quantities;
+    }
+    
+    static CheckoutEffect of(Customer customer, OrderLines lines, long amount) {
+        String[] productNames = new String[lines.getLineCount()];
+        int[] quantities = new int[lines.getLineCount()];
+        for (int i = 0; i < lines.getLineCount(); i++) {
+            productNames[i] = lines.getProduct(i).getName();
+            quantities[i] = lines.getQuantity(i);
+        }
+        return new CheckoutEffect(customer.getName(), amount, productNames, quantities);
+    }
+    
+    public String getCustomerName() {
+        return customerName;
+    }
+    
+    public long getAmount() {
+        return amount;
+    }
+    
+    public int getLineCount() {
+        return productNames.length;
+    }
+    
+    public String getProductName(int line) {
+        return productNames[line];
+    }
+    
+    public int getQuantity(int line) {
+        return quantities[line];
+    }
+    
+    byte[] encode() {
+        byte[] customer = customerName.getBytes(StandardCharsets.UTF_8);
+        byte[][] products = new byte[productNames.length][];
+        int size = 2 + customer.length + 8 + 4;
+        for (int i = 0; i < productNames.length; i++) {
+            products[i] = productNames[i].getBytes(StandardCharsets.UTF_8);
+            size += 2 + products[i].length + 4;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putShort((short) customer.length).put(customer);
+        buffer.putLong(amount);
+        buffer.putInt(products.length);
+        for (int i = 0; i < products.length; i++) {
+            buffer.putShort((short) products[i].length).put(products[i]);
+            buffer.putInt(quantities[i]);
+        }
+        return buffer.array();
+    }
+    
+    static CheckoutEffect decode(ByteBuffer buffer) {
+        String customer = readString(buffer);
+        long amount = buffer.getLong();
+        int lines = buffer.getInt();
+        String[] productNames = new String[lines];
+        int[] quantities = new int[lines];
+        for (int i = 0; i < lines; i++) {
+            productNames[i] = readString(buffer);
+            quantities[i] = buffer.getInt();
+        }
+        return new CheckoutEffect(customer, amount, productNames, quantities);
+    }
+    
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+interface JournalListener {
+    // Called on the journal writer thread, in log order, once the effect is durable.
+    void onDurable(CheckoutEffect effect);
+    
+    // Called on the journal writer thread after every effect of earlier segments was delivered.
+    void onRotated(long segment);
+}
+
+class CheckoutJournal implements AutoCloseable {
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Frame header: payload length, then CRC32 of the payload.
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_BATCH = 4096;
+    
+    private static final class Pending {
+        final CheckoutEffect effect;
+        final ByteBuffer frame;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final CompletableFuture<Long> rotated;
+        
+        Pending(CheckoutEffect effect, ByteBuffer frame) {
+            this.effect = effect;
+            this.frame = frame;
+            this.rotated = null;
+        }
+        
+        Pending() {
+            this.effect = null;
+            this.frame = null;
+            this.rotated = new CompletableFuture<>();
+        }
+    }
+    
+    private final Path directory;
+    private final long windowNanos;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private FileChannel channel;
+    private long segment;
+    private volatile JournalListener listener;
+    private final CloseGate gate = new CloseGate();
+    private volatile boolean closed;
+    // Set when a failed batch could not be cut off; every later batch fails rather than follow torn bytes.
+    private IOException broken;
+    
+    private CheckoutJournal(Path directory, long segment, FileChannel channel, long windowMicros) {
+        this.directory = directory;
+        this.segment = segment;
+        this.channel = channel;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.writer = new Thread(this::writeLoop, "checkout-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    public static CheckoutJournal open(Path directory, long groupCommitWindowMicros) throws IOException {
+        Files.createDirectories(directory);
+        List<Long> segments = segments(directory);
+        long segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        FileChannel channel = FileChannel.open(segmentPath(directory, segment), StandardOpenOption.CREATE,
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Drop a torn tail left by a crash so new frames follow the last valid one.
+        long validEnd = scan(channel, null);
+        channel.truncate(validEnd);
+        channel.position(validEnd);
+        return new CheckoutJournal(directory, segment, channel, groupCommitWindowMicros);
+    }
+    
+    static Path segmentPath(Path directory, long segment) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+    
+    static List<Long> segments(Path directory) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                 .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                 .forEach(name -> segments.add(Long.parseLong(
+                     name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+    
+    public static int replay(Path directory, Map<String, Customer> customers, Map<String, Product> products)
+            throws IOException {
+        return replay(directory, 0, customers, products);
+    }
+    
+    public static int replay(Path directory, long fromSegment, Map<String, Customer> customers,
+                             Map<String, Product> products) throws IOException {
+        int[] replayed = new int[1];
+        for (long segment : segments(directory)) {
+            if (segment < fromSegment) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(segmentPath(directory, segment), StandardOpenOption.READ)) {
+                scan(channel, effect -> {
+                    Customer customer = customers.get(effect.getCustomerName());
+                    if (customer != null) {
+                        customer.deductBalance(effect.getAmount());
+                    }
+                    for (int i = 0; i < effect.getLineCount(); i++) {
+                        Product product = products.get(effect.getProductName(i));
+                        if (product != null) {
+                            product.setQuantity(product.getQuantity() - effect.getQuantity(i));
+                        }
+                    }
+                    replayed[0]++;
+                });
+            }
+        }
+        return replayed[0];
+    }
+    
+    public void setListener(JournalListener listener) {
+        this.listener = listener;
+    }
+    
+    // Deletes every segment older than the given one; the active segment is never removed.
+    public void truncateBefore(long segment) throws IOException {
+        for (long old : segments(directory)) {
+            if (old < segment) {
+                Files.deleteIfExists(segmentPath(directory, old));
+            }
+        }
+    }
+    
+    private static long scan(FileChannel channel, Consumer<CheckoutEffect> visitor)
+            throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                return start;
+            }
+            ByteBuffer payload = buffer.slice(buffer.position(), length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return start;
+            }
+            if (visitor != null) {
+                visitor.accept(CheckoutEffect.decode(payload));
+            }
+            buffer.position(buffer.position() + length);
+        }
+        return buffer.position();
+    }
+    
+    public CompletableFuture<Void> append(CheckoutEffect effect) {
+        byte[] payload = effect.encode();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        frame.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        Pending pending = new Pending(effect, frame);
+        enqueue(pending);
+        return pending.done;
+    }
+    
+    // Closes the active segment after every record appended so far and starts the next one.
+    public CompletableFuture<Long> rotate() {
+        Pending marker = new Pending();
+        enqueue(marker);
+        return marker.rotated;
+    }
+    
+    private void enqueue(Pending pending) {
+        if (!gate.enter()) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        try {
+            queue.add(pending);
+        } finally {
+            gate.exit();
+        }
+    }
+    
+    public void commit(CheckoutEffect effect) throws IOException {
+        await(append(effect));
+    }
+    
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+    
+    private void writeLoop() {
+        try {
+            drainQueue();
+        } finally {
+            // Whatever stopped the writer, no caller may wait on a record it will never write.
+            gate.close();
+            IOException stopped = new IOException("Journal is closed");
+            for (Pending pending = queue.poll(); pending != null; pending = queue.poll()) {
+                if (pending.frame == null) {
+                    pending.rotated.completeExceptionally(stopped);
+                } else {
+                    pending.done.completeExceptionally(stopped);
+                }
+            }
+        }
+    }
+    
+    private void drainQueue() {
+        List<Pending> batch = new ArrayList<>();
+        ByteBuffer[] frames = new ByteBuffer[MAX_BATCH];
+        while (!closed || !queue.isEmpty()) {
+            Pending rotation = null;
+            try {
+                Pending first = queue.poll(10, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                if (first.frame == null) {
+                    rotation = first;
+                } else {
+                    batch.add(first);
+                }
+                long deadline = System.nanoTime() + windowNanos;
+                while (rotation == null && batch.size() < MAX_BATCH) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    if (next.frame == null) {
+                        rotation = next;
+                    } else {
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException e) {
+                gate.close();
+                closed = true;
+            }
+            if (!batch.isEmpty()) {
+                flush(batch, frames);
+                batch.clear();
+            }
+            if (rotation != null) {
+                rotate(rotation);
+            }
+        }
+    }
+    
+    private void flush(List<Pending> batch, ByteBuffer[] frames) {
+        long start = -1;
+        try {
+            if (broken != null) {
+                throw broken;
+            }
+            start = channel.position();
+            for (int i = 0; i < batch.size(); i++) {
+                frames[i] = batch.get(i).frame;
+            }
+            int offset = 0;
+            while (offset < batch.size()) {
+                channel.write(frames, offset, batch.size() - offset);
+                while (offset < batch.size() && !frames[offset].hasRemaining()) {
+                    offset++;
+                }
+            }
+            channel.force(false);
+            JournalListener listener = this.listener;
+            for (Pending pending : batch) {
+                if (listener != null) {
+                    listener.onDurable(pending.effect);
+                }
+                pending.done.complete(null);
+            }
+        } catch (IOException e) {
+            // Cut off any partial frames so the next batch does not land behind a torn record and get
+            // truncated away on the next open.
+            if (start >= 0) {
+                try {
+                    channel.truncate(start);
+                    channel.position(start);
+                } catch (IOException truncateFailure) {
+                    e.addSuppressed(truncateFailure);
+                    broken = e;
+                }
+            }
+            for (Pending pending : batch) {
+                pending.done.completeExceptionally(e);
+            }
+        } finally {
+            Arrays.fill(frames, 0, batch.size(), null);
+        }
+    }
+    
+    private void rotate(Pending marker) {
+        try {
+            channel.force(true);
+            FileChannel next = FileChannel.open(segmentPath(directory, segment + 1), StandardOpenOption.CREATE,
+                                                StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.close();
+            channel = next;
+            segment++;
+            JournalListener listener = this.listener;
+            if (listener != null) {
+                listener.onRotated(segment);
+            }
+            marker.rotated.complete(segment);
+        } catch (IOException e) {
+            marker.rotated.completeExceptionally(e);
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        // Closing the gate first means every accepted record is queued before the writer sees closed.
+        gate.close();
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
+
+class StateSnapshotter implements JournalListener, AutoCloseable {
+    static final int MAGIC = 0x534E4150;
+    static final int VERSION = 2;
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private static final int FILE_HEADER_BYTES = 20;
+    // Block directory entry: kind, record count, offset, length.
+    private static final int BLOCK_ENTRY_BYTES = 17;
+    private static final int BLOCK_RECORDS = 65536;
+    private static final byte CUSTOMERS = 0;
+    private static final byte PRODUCTS = 1;
+    // Totals debited from entities registered after the snapshotter; restore applies them to the fresh entity.
+    private static final byte CUSTOMER_DEBITS = 2;
+    private static final byte PRODUCT_DEBITS = 3;
+    
+    private static final class Image {
+        final long segment;
+        final long[] balances;
+        final long[] quantities;
+        final String[] debitedCustomers;
+        final long[] customerDebits;
+        final String[] debitedProducts;
+        final long[] productDebits;
+        
+        Image(long segment, long[] balances, long[] quantities, Map<String, long[]> customerDebits,
+              Map<String, long[]> productDebits) {
+            this.segment = segment;
+            this.balances = balances;
+            this.quantities = quantities;
+            this.debitedCustomers = customerDebits.keySet().toArray(new String[0]);
+            this.customerDebits = totals(debitedCustomers, customerDebits);
+            this.debitedProducts = productDebits.keySet().toArray(new String[0]);
+            this.productDebits = totals(debitedProducts, productDebits);
+        }
+        
+        private static long[] totals(String[] names, Map<String, long[]> debits) {
+            long[] totals = new long[names.length];
+            for (int i = 0; i < names.length; i++) {
+                totals[i] = debits.get(names[i])[0];
+            }
+            return totals;
+        }
+    }
+    
+    private final Path directory;
+    private final CheckoutJournal journal;
+    private final Map<String, Integer> customerIndex = new HashMap<>();
+    private final Map<String, Integer> productIndex = new HashMap<>();
+    private final String[] customerNames;
+    private final String[] productNames;
+    // Durable state as of the last journaled effect; only the journal writer thread touches it.
+    private final long[] balances;
+    private final long[] quantities;
+    private final Map<String, long[]> customerDebits = new HashMap<>();
+    private final Map<String, long[]> productDebits = new HashMap<>();
+    private volatile Image captured;
+    private ScheduledExecutorService scheduler;
+    
+    // Must be created while no carts hold stock, e.g. right after restore, so the image matches the journal.
+    // Entities registered later are tracked by the total their effects debited, which restore applies to the
+    // freshly constructed entity just as journal replay would.
+    public StateSnapshotter(Path directory, CheckoutJournal journal, Map<String, Customer> customers,
+                            Map<String, Product> products) {
+        this.directory = directory;
+        this.journal = journal;
+        this.customerNames = customers.keySet().toArray(new String[0]);
+        this.productNames = products.keySet().toArray(new String[0]);
+        this.balances = new long[customerNames.length];
+        this.quantities = new long[productNames.length];
+        for (int i = 0; i < customerNames.length; i++) {
+            customerIndex.put(customerNames[i], i);
+            balances[i] = customers.get(customerNames[i]).getBalance();
+        }
+        for (int i = 0; i < productNames.length; i++) {
+            productIndex.put(productNames[i], i);
+            quantities[i] = products.get(productNames[i]).getQuantity();
+        }
+        journal.setListener(this);
+    }
+    
+    @Override
+    public void onDurable(CheckoutEffect effect) {
+        Integer customer = customerIndex.get(effect.getCustomerName());
+        if (customer != null) {
+            balances[customer] -= effect.getAmount();
+        } else {
+            customerDebits.computeIfAbsent(effect.getCustomerName(), name -> new long[1])[0] += effect.getAmount();
+        }
+        for (int i = 0; i < effect.getLineCount(); i++) {
+            Integer product = productIndex.get(effect.getProductName(i));
+            if (product != null) {
+                quantities[product] -= effect.getQuantity(i);
+            } else {
+                productDebits.computeIfAbsent(effect.getProductName(i), name -> new long[1])[0] += effect.getQuantity(i);
+            }
+        }
+    }
+    
+    @Override
+    public void onRotated(long segment) {
+        captured = new Image(segment, balances.clone(), quantities.clone(), customerDebits, productDebits);
+    }
+    
+    public synchronized void start(long periodMillis) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "state-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                System.err.println("Snapshot failed: " + e.getMessage());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    // Rotates the journal, writes the image as of the rotation point and drops the segments it covers.
+    public synchronized long snapshot() throws IOException {
+        long segment = CheckoutJournal.await(journal.rotate());
+        Image image = captured;
+        Path target = snapshotPath(directory, segment);
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, image);
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        journal.truncateBefore(segment);
+        for (long old : snapshots(directory)) {
+            if (old < segment) {
+                Files.deleteIfExists(snapshotPath(directory, old));
+            }
+        }
+        return segment;
+    }
+    
+    private void write(FileChannel channel, Image image) throws IOException {
+        byte[] kinds = {CUSTOMERS, PRODUCTS, CUSTOMER_DEBITS, PRODUCT_DEBITS};
+        String[][] names = {customerNames, productNames, image.debitedCustomers, image.debitedProducts};
+        long[][] values = {image.balances, image.quantities, image.customerDebits, image.productDebits};
+        int blockCount = 0;
+        for (String[] section : names) {
+            blockCount += (section.length + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+        }
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES + blockCount * BLOCK_ENTRY_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putLong(image.segment).putInt(blockCount);
+        long offset = header.capacity();
+        channel.position(offset);
+        for (int section = 0; section < kinds.length; section++) {
+            for (int first = 0; first < names[section].length; first += BLOCK_RECORDS) {
+                int last = Math.min(first + BLOCK_RECORDS, names[section].length);
+                ByteBuffer buffer = encodeBlock(names[section], values[section], first, last);
+                header.put(kinds[section]).putInt(last - first).putLong(offset).putInt(buffer.remaining());
+                offset += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+        header.flip();
+        channel.position(0);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+    
+    private static ByteBuffer encodeBlock(String[] names, long[] values, int first, int last) {
+        byte[][] encoded = new byte[last - first][];
+        int size = 0;
+        for (int i = first; i < last; i++) {
+            encoded[i - first] = names[i].getBytes(StandardCharsets.UTF_8);
+            size += 2 + encoded[i - first].length + 8;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = first; i < last; i++) {
+            buffer.putShort((short) encoded[i - first].length).put(encoded[i - first]).putLong(values[i]);
+        }
+        return buffer.flip();
+    }
+    
+    // Loads the latest snapshot with one reader per block, then replays only the journal tail after it.
+    public static int restore(Path directory, Map<String, Customer> customers, Map<String, Product> products)
+            throws IOException {
+        List<Long> snapshots = snapshots(directory);
+        long fromSegment = 0;
+        if (!snapshots.isEmpty()) {
+            fromSegment = snapshots.get(snapshots.size() - 1);
+            Path file = snapshotPath(directory, fromSegment);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int version = buffer.getInt(4);
+                if (buffer.getInt(0) != MAGIC || version < 1 || version > VERSION || buffer.getLong(8) != fromSegment) {
+                    throw new IOException("Not a valid snapshot: " + file);
+                }
+                int blockCount = buffer.getInt(16);
+                IntStream.range(0, blockCount).parallel().forEach(block -> {
+                    int entry = FILE_HEADER_BYTES + block * BLOCK_ENTRY_BYTES;
+                    byte kind = buffer.get(entry);
+                    int records = buffer.getInt(entry + 1);
+                    ByteBuffer data = buffer.slice((int) buffer.getLong(entry + 5), buffer.getInt(entry + 13));
+                    for (int i = 0; i < records; i++) {
+                        byte[] name = new byte[data.getShort() & 0xFFFF];
+                        data.get(name);
+                        long value = data.getLong();
+                        String key = new String(name, StandardCharsets.UTF_8);
+                        if (kind == CUSTOMERS || kind == CUSTOMER_DEBITS) {
+                            Customer customer = customers.get(key);
+                            if (customer == null) {
+                                continue;
+                            }
+                            if (kind == CUSTOMERS) {
+                                customer.setBalance(value);
+                            } else {
+                                customer.deductBalance(value);
+                            }
+                        } else {
+                            Product product = products.get(key);
+                            if (product == null) {
+                                continue;
+                            }
+                            if (kind == PRODUCTS) {
+                                product.setQuantity((int) value);
+                            } else {
+                                product.setQuantity(product.getQuantity() - (int) value);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+        return CheckoutJournal.replay(directory, fromSegment, customers, products);
+    }
+    
+    static Path snapshotPath(Path directory, long segment) {
+        return directory.resolve(String.format("%s%08d%s", SNAPSHOT_PREFIX, segment, SNAPSHOT_SUFFIX));
+    }
+    
+    static List<Long> snapshots(Path directory) throws IOException {
+        List<Long> snapshots = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return snapshots;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                 .filter(name -> name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX))
+                 .forEach(name -> snapshots.add(Long.parseLong(
+                     name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()))));
+        }
+        Collections.sort(snapshots);
+        return snapshots;
+    }
+    
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
+
+class OrderEvent {
+    private final long orderId;
+    private final long timestampMillis;
+    private final CheckoutEffect effect;
+    
+    public OrderEvent(long orderId, long timestampMillis, CheckoutEffect effect) {
+        this.orderId = orderId;
+        this.timestampMillis = timestampMillis;
+        this.effect = effect;
+    }
+    
+    public long getOrderId() {
+        return orderId;
+    }
+    
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+    
+    public String getCustomerName() {
+        return effect.getCustomerName();
+    }
+    
+    public long getAmount() {
+        return effect.getAmount();
+    }
+    
+    public int getLineCount() {
+        return effect.getLineCount();
+    }
+    
+    public String getProductName(int line) {
+        return effect.getProductName(line);
+    }
+    
+    public int getQuantity(int line) {
+        return effect.getQuantity(line);
+    }
+}
+
+class OrderEventStore implements AutoCloseable {
+    private static final int CHUNK_SHIFT = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    // Log frame header: payload length, then CRC32 of the payload (timestamp followed by the effect).
+    private static final int HEADER_BYTES = 8;
+    
+    private volatile OrderEvent[][] chunks = new OrderEvent[16][];
+    // Events below this index are fully written and safe to read without locking.
+    private volatile long published;
+    // Null for a heap-only store.
+    private final FileChannel log;
+    // Order ids are positions, so after one failed write the log stops rather than leave a gap.
+    private boolean logFailed;
+    // Log offsets: everything below written has been handed to the OS, everything below forced is on disk.
+    private volatile long written;
+    private volatile long forced;
+    private final Object forceLock = new Object();
+    
+    public OrderEventStore() {
+        this.log = null;
+    }
+    
+    private OrderEventStore(FileChannel log) {
+        this.log = log;
+    }
+    
+    // Reloads every intact event from the log, then appends new events to it. A torn tail left by a crash is
+    // dropped. append() returns once its event is forced to disk, so the log is as durable as the journal.
+    public static OrderEventStore open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+        OrderEventStore store = new OrderEventStore(channel);
+        try {
+            long validEnd = store.load();
+            channel.truncate(validEnd);
+            channel.position(validEnd);
+            store.written = validEnd;
+            store.forced = validEnd;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return store;
+    }
+    
+    private synchronized long load() throws IOException {
+        long size = log.size();
+        if (size == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = log.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= Long.BYTES || length > buffer.remaining()) {
+                return start;
+            }
+            ByteBuffer payload = buffer.slice(buffer.position(), length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return start;
+            }
+            long timestampMillis = payload.getLong();
+            add(timestampMillis, CheckoutEffect.decode(payload));
+            buffer.position(buffer.position() + length);
+        }
+        return buffer.position();
+    }
+    
+    public OrderEvent append(CheckoutEffect effect) {
+        OrderEvent event;
+        long end;
+        synchronized (this) {
+            event = add(System.currentTimeMillis(), effect);
+            if (log == null || logFailed) {
+                return event;
+            }
+            end = writeToLog(event, effect);
+        }
+        if (end >= 0) {
+            force(end);
+        }
+        return event;
+    }
+    
+    // Group commit: a force covers every event written before it started, so appenders that queue up
+    // behind one force find their event already on disk.
+    private void force(long end) {
+        if (forced >= end) {
+            return;
+        }
+        synchronized (forceLock) {
+            if (forced >= end) {
+                return;
+            }
+            long target = written;
+            try {
+                log.force(false);
+                forced = target;
+            } catch (IOException e) {
+                logFailure("force", e);
+            }
+        }
+    }
+    
+    // The order is already paid and journaled when it reaches the store, so a log failure is reported, not thrown.
+    private synchronized void logFailure(String operation, IOException e) {
+        if (!logFailed) {
+            logFailed = true;
+            System.err.println("Order event log " + operation + " failed; later events are kept in memory only: "
+                               + e.getMessage());
+        }
+    }
+    
+    // Returns the log offset just past the event, or -1 if it could not be written.
+    private long writeToLog(OrderEvent event, CheckoutEffect effect) {
+        byte[] encoded = effect.encode();
+        CRC32 crc = new CRC32();
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + Long.BYTES + encoded.length);
+        frame.putInt(Long.BYTES + encoded.length).putInt(0).putLong(event.getTimestampMillis()).put(encoded);
+        crc.update(frame.array(), HEADER_BYTES, Long.BYTES + encoded.length);
+        frame.putInt(Integer.BYTES, (int) crc.getValue()).flip();
+        try {
+            while (frame.hasRemaining()) {
+                log.write(frame);
+            }
+            long end = log.position();
+            written = end;
+            return end;
+        } catch (IOException e) {
+            logFailure("write", e);
+            return -1;
+        }
+    }
+    
+    private OrderEvent add(long timestampMillis, CheckoutEffect effect) {
+        long orderId = published;
+        int chunk = (int) (orderId >>> CHUNK_SHIFT);
+        OrderEvent[][] chunks = this.chunks;
+        if (chunk == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+            this.chunks = chunks;
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new OrderEvent[CHUNK_SIZE];
+        }
+        OrderEvent event = new OrderEvent(orderId, timestampMillis, effect);
+        chunks[chunk][(int) (orderId & CHUNK_MASK)] = event;
+        published = orderId + 1;
+        notifyAll();
+        return event;
+    }
+    
+    public long size() {
+        return published;
+    }
+    
+    public OrderEvent get(long orderId) {
+        if (orderId < 0 || orderId >= published) {
+            throw new IndexOutOfBoundsException("Unknown order: " + orderId);
+        }
+        return chunks[(int) (orderId >>> CHUNK_SHIFT)][(int) (orderId & CHUNK_MASK)];
+    }
+    
+    synchronized void awaitBeyond(long position, long timeoutMillis) throws InterruptedException {
+        if (published <= position) {
+            wait(timeoutMillis);
+        }
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null && log.isOpen()) {
+            try {
+                log.force(false);
+            } finally {
+                log.close();
+            }
+        }
+    }
+}
+
+class OrderReadModel implements AutoCloseable {
+    private final OrderEventStore store;
+    private final Map<String, List<Long>> ordersByCustomer = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> unitsByProduct = new ConcurrentHashMap<>();
+    private final Thread projector;
+    private volatile long projected;
+    private volatile boolean closed;
+    
+    public OrderReadModel(OrderEventStore store) {
+        this.store = store;
+        this.projector = new Thread(this::project, "order-read-model");
+        projector.setDaemon(true);
+        projector.start();
+    }
+    
+    private void project() {
+        while (!closed) {
+            long position = projected;
+            try {
+                store.awaitBeyond(position, 100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long end = store.size();
+            for (; position < end; position++) {
+                apply(store.get(position));
+            }
+            projected = position;
+        }
+    }
+    
+    private void apply(OrderEvent event) {
+        List<Long> orders = ordersByCustomer.computeIfAbsent(event.getCustomerName(),
+                                                            name -> Collections.synchronizedList(new ArrayList<>()));
+        orders.add(event.getOrderId());
+        for (int i = 0; i < event.getLineCount(); i++) {
+            unitsByProduct.computeIfAbsent(event.getProductName(i), name -> new AtomicLong())
+                          .addAndGet(event.getQuantity(i));
+        }
+    }
+    
+    public List<OrderEvent> ordersFor(String customerName) {
+        List<Long> orders = ordersByCustomer.get(customerName);
+        if (orders == null) {
+            return Collections.emptyList();
+        }
+        List<OrderEvent> events = new ArrayList<>();
+        synchronized (orders) {
+            for (Long orderId : orders) {
+                events.add(store.get(orderId));
+            }
+        }
+        return events;
+    }
+    
+    public long unitsSold(String productName) {
+        AtomicLong units = unitsByProduct.get(productName);
+        return units == null ? 0 : units.get();
+    }
+    
+    public long getProjectedThrough() {
+        return projected;
+    }
+    
+    public boolean awaitCaughtUp(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (projected < store.size()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+    
+    @Override
+    public void close() {
+        closed = true;
+        projector.interrupt();
+    }
+}
+
+class ColumnBuffer {
+    private byte[] bytes = new byte[1024];
+    private int size;
+    private long previous;
+    
+    public void writeVarLong(long value) {
+        if (size + 10 > bytes.length) {
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+        while ((value & ~0x7FL) != 0) {
+            bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[size++] = (byte) value;
+    }
+    
+    // Zigzag-encoded difference from the previous value, so similar amounts take one or two bytes.
+    public void writeDelta(long value) {
+        long delta = value - previous;
+        previous = value;
+        writeVarLong((delta << 1) ^ (delta >> 63));
+    }
+    
+    public void writeBytes(byte[] value) {
+        writeVarLong(value.length);
+        if (size + value.length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + value.length));
+        }
+        System.arraycopy(value, 0, bytes, size, value.length);
+        size += value.length;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public byte[] array() {
+        return bytes;
+    }
+    
+    public void reset() {
+        size = 0;
+        previous = 0;
+    }
+}
+
+class ReceiptArchiveWriter implements AutoCloseable {
+    static final int MAGIC = 0x52435054;
+    static final int VERSION = 1;
+    static final String SEGMENT_PREFIX = "receipts-";
+    static final String SEGMENT_SUFFIX = ".seg";
+    
+    static final int DICTIONARY = 0;
+    static final int LINE_COUNT = 1;
+    static final int SUBTOTAL = 2;
+    static final int SHIPPING = 3;
+    static final int AMOUNT = 4;
+    static final int LINE_PRODUCT = 5;
+    static final int LINE_QUANTITY = 6;
+    static final int LINE_TOTAL = 7;
+    static final int COLUMNS = 8;
+    
+    // A full segment's columns, handed from the appending thread to the flusher.
+    private static final class Sealed {
+        final long segment;
+        final int receipts;
+        final int lines;
+        final ColumnBuffer[] columns;
+        
+        Sealed(long segment, int receipts, int lines, ColumnBuffer[] columns) {
+            this.segment = segment;
+            this.receipts = receipts;
+            this.lines = lines;
+            this.columns = columns;
+        }
+    }
+    
+    private final Path directory;
+    private final int receiptsPerSegment;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final ExecutorService flusher;
+    // Sealed segments not yet on disk, oldest first; a failed write stays at the head and is retried.
+    private final ArrayDeque<Sealed> pending = new ArrayDeque<>();
+    private ColumnBuffer[] columns = newColumns();
+    private long segment;
+    private int receipts;
+    private int lines;
+    private volatile IOException lastFailure;
+    
+    public ReceiptArchiveWriter(Path directory, int receiptsPerSegment) throws IOException {
+        this.directory = directory;
+        this.receiptsPerSegment = receiptsPerSegment;
+        Files.createDirectories(directory);
+        List<Long> existing = ReceiptArchiveReader.segments(directory);
+        this.segment = existing.isEmpty() ? 0 : existing.get(existing.size() - 1) + 1;
+        this.flusher = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "receipt-archive-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    private static ColumnBuffer[] newColumns() {
+        ColumnBuffer[] columns = new ColumnBuffer[COLUMNS];
+        for (int i = 0; i < COLUMNS; i++) {
+            columns[i] = new ColumnBuffer();
+        }
+        return columns;
+    }
+    
+    // Only encodes into memory; full segments are compressed and written by the flusher thread.
+    public synchronized void append(OrderLines lines, long subtotal, long shipping, long amount) {
+        columns[LINE_COUNT].writeVarLong(lines.getLineCount());
+        columns[SUBTOTAL].writeDelta(subtotal);
+        columns[SHIPPING].writeDelta(shipping);
+        columns[AMOUNT].writeDelta(amount);
+        for (int i = 0; i < lines.getLineCount(); i++) {
+            String name = lines.getProduct(i).getName();
+            Integer id = dictionary.get(name);
+            if (id == null) {
+                id = dictionary.size();
+                dictionary.put(name, id);
+                columns[DICTIONARY].writeBytes(name.getBytes(StandardCharsets.UTF_8));
+            }
+            columns[LINE_PRODUCT].writeVarLong(id);
+            columns[LINE_QUANTITY].writeVarLong(lines.getQuantity(i));
+            columns[LINE_TOTAL].writeDelta(lines.getLineTotal(i));
+        }
+        this.lines += lines.getLineCount();
+        if (++receipts >= receiptsPerSegment) {
+            seal();
+            flusher.execute(this::writePending);
+        }
+    }
+    
+    private synchronized boolean seal() {
+        if (receipts == 0) {
+            return false;
+        }
+        synchronized (pending) {
+            pending.addLast(new Sealed(segment, receipts, lines, columns));
+        }
+        segment++;
+        receipts = 0;
+        lines = 0;
+        dictionary.clear();
+        columns = newColumns();
+        return true;
+    }
+    
+    // Runs on the flusher thread only.
+    private void writePending() {
+        while (true) {
+            Sealed next;
+            synchronized (pending) {
+                next = pending.peekFirst();
+            }
+            if (next == null) {
+                lastFailure = null;
+                return;
+            }
+            try {
+                write(next);
+            } catch (IOException e) {
+                if (lastFailure == null) {
+                    System.err.println("Receipt archive write failed, will retry: " + e.getMessage());
+                }
+                lastFailure = e;
+                return;
+            }
+            synchronized (pending) {
+                pending.pollFirst();
+            }
+        }
+    }
+    
+    // Seals the open segment and waits until every sealed segment is on disk.
+    public void flush() throws IOException {
+        seal();
+        try {
+            flusher.submit(this::writePending).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing receipt archive", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Receipt archive flush failed", e.getCause());
+        }
+        IOException failure = lastFailure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    private void write(Sealed sealed) throws IOException {
+        byte[][] compressed = new byte[COLUMNS][];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            for (int i = 0; i < COLUMNS; i++) {
+                compressed[i] = compress(deflater, sealed.columns[i]);
+            }
+        } finally {
+            deflater.end();
+        }
+        ByteBuffer header = ByteBuffer.allocate(16 + COLUMNS * 8);
+        header.putInt(MAGIC).putInt(VERSION).putInt(sealed.receipts).putInt(sealed.lines);
+        for (int i = 0; i < COLUMNS; i++) {
+            header.putInt(compressed[i].length).putInt(sealed.columns[i].size());
+        }
+        header.flip();
+        Path target = ReceiptArchiveReader.segmentPath(directory, sealed.segment);
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            for (byte[] column : compressed) {
+                ByteBuffer buffer = ByteBuffer.wrap(column);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private static byte[] compress(Deflater deflater, ColumnBuffer column) {
+        deflater.reset();
+        deflater.setInput(column.array(), 0, column.size());
+        deflater.finish();
+        byte[] out = new byte[Math.max(64, column.size() + column.size() / 8 + 64)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return Arrays.copyOf(out, length);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            flusher.shutdown();
+        }
+    }
+}
+
+class ReceiptArchiveReader {
+    private ReceiptArchiveReader() {
+    }
+    
+    static Path segmentPath(Path directory, long segment) {
+        return directory.resolve(String.format("%s%08d%s", ReceiptArchiveWriter.SEGMENT_PREFIX, segment,
+                                               ReceiptArchiveWriter.SEGMENT_SUFFIX));
+    }
+    
+    static List<Long> segments(Path directory) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        String prefix = ReceiptArchiveWriter.SEGMENT_PREFIX;
+        String suffix = ReceiptArchiveWriter.SEGMENT_SUFFIX;
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                 .filter(name -> name.startsWith(prefix) && name.endsWith(suffix))
+                 .forEach(name -> segments.add(Long.parseLong(
+                     name.substring(prefix.length(), name.length() - suffix.length()))));
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+    
+    // Inflates only the amount column of each segment; segments are scanned in parallel.
+    public static long sumRevenue(Path directory) throws IOException {
+        List<Long> segments = segments(directory);
+        long[] totals = new long[segments.size()];
+        IOException[] failure = new IOException[1];
+        IntStream.range(0, segments.size()).parallel().forEach(i -> {
+            try {
+                totals[i] = sumColumn(segmentPath(directory, segments.get(i)), ReceiptArchiveWriter.AMOUNT);
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        long revenue = 0;
+        for (long total : totals) {
+            revenue += total;
+        }
+        return revenue;
+    }
+    
+    public static long countReceipts(Path directory) throws IOException {
+        long count = 0;
+        for (long segment : segments(directory)) {
+            try (FileChannel channel = FileChannel.open(segmentPath(directory, segment), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(16);
+                channel.read(header, 0);
+                count += header.getInt(8);
+            }
+        }
+        return count;
+    }
+    
+    private static long sumColumn(Path file, int column) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != ReceiptArchiveWriter.MAGIC || buffer.getInt(4) != ReceiptArchiveWriter.VERSION) {
+                throw new IOException("Not a receipt segment: " + file);
+            }
+            int receipts = buffer.getInt(8);
+            long offset = 16 + ReceiptArchiveWriter.COLUMNS * 8;
+            for (int i = 0; i < column; i++) {
+                offset += buffer.getInt(16 + i * 8);
+            }
+            int compressedLength = buffer.getInt(16 + column * 8);
+            if (offset + compressedLength > buffer.limit()) {
+                throw new IOException("Truncated receipt segment: " + file);
+            }
+            byte[] raw = new byte[buffer.getInt(20 + column * 8)];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(buffer.slice((int) offset, compressedLength));
+                int length = 0;
+                while (length < raw.length && !inflater.finished()) {
+                    int inflated = inflater.inflate(raw, length, raw.length - length);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Truncated receipt segment: " + file);
+                    }
+                    length += inflated;
+                }
+                if (length < raw.length) {
+                    throw new IOException("Truncated receipt segment: " + file);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt receipt segment: " + file, e);
+            } finally {
+                inflater.end();
+            }
+            long sum = 0;
+            long previous = 0;
+            int position = 0;
+            for (int i = 0; i < receipts; i++) {
+                long encoded = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = raw[position++];
+                    encoded |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                previous += (encoded >>> 1) ^ -(encoded & 1);
+                sum += previous;
+            }
+            return sum;
+        }
+    }
+}
+
+class ECommerceSystem {
+    private static volatile CheckoutJournal journal;
+    private static volatile OrderEventStore orderStore;
+    private static volatile ReceiptArchiveWriter receiptArchive;
+    private static volatile ReceiptSink receiptSink = new PrintStreamReceiptSink(System.out);
+    private static volatile ShipmentDispatcher shipmentDispatcher;
+    
+    public static void setJournal(CheckoutJournal journal) {
+        ECommerceSystem.journal = journal;
+    }
+    
+    public static void setOrderStore(OrderEventStore orderStore) {
+        ECommerceSystem.orderStore = orderStore;
+    }
+    
+    public static void setReceiptArchive(ReceiptArchiveWriter receiptArchive) {
+        ECommerceSystem.receiptArchive = receiptArchive;
+    }
+    
+    public static void setReceiptSink(ReceiptSink receiptSink) {
+        ECommerceSystem.receiptSink = Objects.requireNonNull(receiptSink);
+    }
+    
+    public static ReceiptSink getReceiptSink() {
+        return receiptSink;
+    }
+    
+    public static void setShipmentDispatcher(ShipmentDispatcher shipmentDispatcher) {
+        ECommerceSystem.shipmentDispatcher = shipmentDispatcher;
+    }
+    
+    private static void dispatchShipment(Customer customer, OrderLines lines) {
+        ShipmentDispatcher dispatcher = ECommerceSystem.shipmentDispatcher;
+        if (dispatcher == null) {
+            return;
+        }
+        // Like archiving, a dispatch problem must not turn a committed order into a failure.
+        try {
+            dispatcher.publish(customer.getName(), lines);
+        } catch (IllegalStateException e) {
+            System.err.println("Shipment dispatch failed for " + customer.getName() + ": " + e.getMessage());
+        }
+    }
+    
+    private static void archiveReceipt(OrderLines lines, long subtotal, long shipping, long amount) {
+        ReceiptArchiveWriter archive = ECommerceSystem.receiptArchive;
+        if (archive == null) {
+            return;
+        }
+        // The order is already committed, so an archive problem is reported but never fails the checkout.
+        try {
+            archive.append(lines, subtotal, shipping, amount);
+        } catch (RuntimeException e) {
+            System.err.println("Receipt archive append failed: " + e);
+        }
+    }
+    
+    public static List<CheckoutResult> checkoutBatch(List<CheckoutRequest> requests) {
+        List<CheckoutResult> results = new ArrayList<>(requests.size());
+        Map<Product, Boolean> expired = new IdentityHashMap<>();
+        CheckoutJournal journal = ECommerceSystem.journal;
+        OrderEventStore orderStore = ECommerceSystem.orderStore;
+        // Parallel lists over accepted orders; the effect and its journal future are null when not recorded.
+        List<Cart> accepted = new ArrayList<>();
+        List<Customer> acceptedCustomers = new ArrayList<>();
+        List<long[]> acceptedTotals = new ArrayList<>();
+        List<CheckoutEffect> effects = new ArrayList<>();
+        List<CompletableFuture<Void>> journaled = new ArrayList<>();
+        List<Integer> resultIndexes = new ArrayList<>();
+        
+        for (CheckoutRequest request : requests) {
+            Customer customer = request.getCustomer();
+            Cart cart = request.getCart();
+            if (cart.isEmpty()) {
+                results.add(CheckoutResult.emptyCart());
+                continue;
+            }
+            
+            Product expiredProduct = null;
+            for (CartItem item : cart.getItems()) {
+                Product product = item.getProduct();
+                if (expired.computeIfAbsent(product, Product::isExpired)) {
+                    expiredProduct = product;
+                    break;
+                }
+            }
+            if (expiredProduct != null) {
+                cart.rollback();
+                results.add(CheckoutResult.productExpired(expiredProduct));
+                continue;
+            }
+            
+            long subtotal = cart.getSubtotal();
+            long shippingFee = ShippingService.calculateShippingFee(cart);
+            long totalAmount = Math.addExact(subtotal, shippingFee);
+            // Debit up front, as checkout does, so concurrent checkouts of the same customer cannot overdraw.
+            if (!customer.tryDebit(totalAmount)) {
+                long available = customer.getBalance();
+                cart.rollback();
+                results.add(CheckoutResult.insufficientBalance(totalAmount, available));
+                continue;
+            }
+            
+            if (!cart.commitHolds()) {
+                customer.credit(totalAmount);
+                cart.rollback();
+                results.add(CheckoutResult.reservationExpired(totalAmount));
+                continue;
+            }
+            
+            CheckoutEffect effect = null;
+            if (journal != null || orderStore != null) {
+                effect = CheckoutEffect.of(customer, cart, totalAmount);
+            }
+            CompletableFuture<Void> future = null;
+            if (journal != null) {
+                try {
+                    future = journal.append(effect);
+                } catch (IllegalStateException e) {
+                    customer.credit(totalAmount);
+                    cart.rollback();
+                    results.add(CheckoutResult.notRecorded(totalAmount));
+                    continue;
+                }
+            }
+            effects.add(effect);
+            journaled.add(future);
+            accepted.add(cart);
+            acceptedCustomers.add(customer);
+            acceptedTotals.add(new long[] {subtotal, shippingFee, totalAmount});
+            resultIndexes.add(results.size());
+            results.add(CheckoutResult.success(totalAmount));
+        }
+        
+        for (int i = 0; i < accepted.size(); i++) {
+            long[] totals = acceptedTotals.get(i);
+            // Every accepted order shares the group commits issued while the batch was built. Only orders
+            // whose own frame failed are undone; the others are durable and replay will apply them.
+            if (journaled.get(i) != null) {
+                try {
+                    CheckoutJournal.await(journaled.get(i));
+                } catch (IOException e) {
+                    acceptedCustomers.get(i).credit(totals[2]);
+                    accepted.get(i).rollback();
+                    results.set(resultIndexes.get(i), CheckoutResult.notRecorded(totals[2]));
+                    continue;
+                }
+            }
+            if (orderStore != null) {
+                orderStore.append(effects.get(i));
+            }
+            archiveReceipt(accepted.get(i), totals[0], totals[1], totals[2]);
+            dispatchShipment(acceptedCustomers.get(i), accepted.get(i));
+            accepted.get(i).completeCheckout();
+        }
+        return results;
+    }
+    
+    public static CheckoutResult checkout(Customer customer, Cart cart) {
+        if (cart.isEmpty()) {
+            return CheckoutResult.emptyCart();
+        }
+        
+        for (CartItem item : cart.getItems()) {
+            Product product = item.getProduct();
+            if (product.isExpired()) {
+                cart.rollback();
+                return CheckoutResult.productExpired(product);
+            }
+        }
+        
+        long subtotal = cart.getSubtotal();
+        long shippingFee = ShippingService.calculateShippingFee(cart);
+        long totalAmount = Math.addExact(subtotal, shippingFee);
+        
+        if (!customer.tryDebit(totalAmount)) {
+            long available = customer.getBalance();
+            cart.rollback();
+            return CheckoutResult.insufficientBalance(totalAmount, available);
+        }
+        
+        if (!cart.commitHolds()) {
+            customer.credit(totalAmount);
+            cart.rollback();
+            return CheckoutResult.reservationExpired(totalAmount);
+        }
+        
+        if (!recordOrder(customer, cart, subtotal, shippingFee, totalAmount, cart::rollback)) {
+            return CheckoutResult.notRecorded(totalAmount);
+        }
+        cart.completeCheckout();
+        return CheckoutResult.success(totalAmount);
+    }
+    
+    // Same flow as checkout(Customer, Cart) for struct-of-arrays carts, which reserve stock directly.
+    public static CheckoutResult checkout(Customer customer, CompactCart cart) {
+        if (cart.isEmpty()) {
+            return CheckoutResult.emptyCart();
+        }
+        Product expiredProduct = cart.firstExpired();
+        if (expiredProduct != null) {
+            cart.release();
+            return CheckoutResult.productExpired(expiredProduct);
+        }
+        
+        double shippingWeight = cart.getShippingWeight();
+        long subtotal = cart.getSubtotal();
+        long shippingFee = ShippingService.calculateShippingFee(cart, shippingWeight);
+        long totalAmount = Math.addExact(subtotal, shippingFee);
+        
+        if (!customer.tryDebit(totalAmount)) {
+            long available = customer.getBalance();
+            cart.release();
+            return CheckoutResult.insufficientBalance(totalAmount, available);
+        }
+        
+        if (!recordOrder(customer, cart, subtotal, shippingFee, totalAmount, cart::release)) {
+            return CheckoutResult.notRecorded(totalAmount);
+        }
+        cart.completeCheckout();
+        return CheckoutResult.success(totalAmount);
+    }
+    
+    // Journals a debited order, then feeds the order store, archive, dispatcher and receipt sink. If the
+    // journal refuses the order, the debit is credited back, undo returns the stock and false is returned,
+    // matching the NOT_RECORDED result checkoutBatch gives for the same failure.
+    private static boolean recordOrder(Customer customer, OrderLines lines, long subtotal, long shippingFee,
+                                       long totalAmount, Runnable undo) {
+        CheckoutJournal journal = ECommerceSystem.journal;
+        OrderEventStore orderStore = ECommerceSystem.orderStore;
+        CheckoutEffect effect = null;
+        if (journal != null || orderStore != null) {
+            effect = CheckoutEffect.of(customer, lines, totalAmount);
+        }
+        if (journal != null) {
+            try {
+                journal.commit(effect);
+            } catch (IOException | IllegalStateException e) {
+                customer.credit(totalAmount);
+                undo.run();
+                return false;
+            }
+        }
+        
+        if (orderStore != null) {
+            orderStore.append(effect);
+        }
+        archiveReceipt(lines, subtotal, shippingFee, totalAmount);
+        dispatchShipment(customer, lines);
+        
+        receiptSink.checkoutReceipt(lines, subtotal, shippingFee, totalAmount, customer.getBalance());
+        return true;
+    }
+}
+
+final class ParallelCheckout {
+    private static final int LEAF_ORDERS = 64;
+    
+    private ParallelCheckout() {
+    }
+    
+    public static List<CheckoutResult> checkoutAll(List<CheckoutRequest> requests) {
+        return checkoutAll(requests, ForkJoinPool.commonPool());
+    }
+    
+    // Results are in request order. Orders of one customer run one after another in submission order;
+    // different customers run in parallel and only contend on the products' own atomic stock counters.
+    public static List<CheckoutResult> checkoutAll(List<CheckoutRequest> requests, ForkJoinPool pool) {
+        int size = requests.size();
+        Map<Customer, Integer> groups = new IdentityHashMap<>();
+        int[] groupOf = new int[size];
+        int[] offsets = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            Integer group = groups.putIfAbsent(requests.get(i).getCustomer(), groups.size());
+            groupOf[i] = group == null ? groups.size() - 1 : group;
+            offsets[groupOf[i] + 1]++;
+        }
+        int groupCount = groups.size();
+        for (int g = 0; g < groupCount; g++) {
+            offsets[g + 1] += offsets[g];
+        }
+        // Stable counting sort: each customer's orders become one contiguous run in submission order.
+        int[] orders = new int[size];
+        int[] cursor = Arrays.copyOf(offsets, groupCount);
+        for (int i = 0; i < size; i++) {
+            orders[cursor[groupOf[i]]++] = i;
+        }
+        
+        CheckoutResult[] results = new CheckoutResult[size];
+        pool.invoke(new CheckoutTask(requests, orders, offsets, 0, groupCount, results));
+        return Arrays.asList(results);
     }
     
-    public double getPrice() {
-        return price;
+    private static final class CheckoutTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final List<CheckoutRequest> requests;
+        private final int[] orders;
+        private final int[] offsets;
+        private final int fromGroup;
+        private final int toGroup;
+        private final CheckoutResult[] results;
+        
+        CheckoutTask(List<CheckoutRequest> requests, int[] orders, int[] offsets, int fromGroup, int toGroup,
+                     CheckoutResult[] results) {
+            this.requests = requests;
+            this.orders = orders;
+            this.offsets = offsets;
+            this.fromGroup = fromGroup;
+            this.toGroup = toGroup;
+            this.results = results;
+        }
+        
+        @Override
+        protected void compute() {
+            if (toGroup - fromGroup > 1 && offsets[toGroup] - offsets[fromGroup] > LEAF_ORDERS) {
+                int middle = (fromGroup + toGroup) >>> 1;
+                invokeAll(new CheckoutTask(requests, orders, offsets, fromGroup, middle, results),
+                          new CheckoutTask(requests, orders, offsets, middle, toGroup, results));
+                return;
+            }
+            for (int i = offsets[fromGroup]; i < offsets[toGroup]; i++) {
+                CheckoutRequest request = requests.get(orders[i]);
+                results[orders[i]] = ECommerceSystem.checkout(request.getCustomer(), request.getCart());
+            }
+        }
     }
+}
+
+class CheckoutHttpServer implements AutoCloseable {
+    private static final long DEFAULT_CART_TTL_MILLIS = TimeUnit.MINUTES.toMillis(30);
     
-    public int getQuantity() {
-        return quantity;
+    static {
+        // The JDK server writes headers and body separately, so without TCP_NODELAY every small response
+        // waits for the client's delayed ACK (about 40 ms). The property is read when the first server starts.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
     }
     
-    public void setQuantity(int quantity) {
-        this.quantity = quantity;
+    // Guarded by the cart's monitor: once closed, by checkout or eviction, the cart takes no more items.
+    private static final class OpenCart {
+        final Cart cart;
+        volatile long touchedMillis = System.currentTimeMillis();
+        boolean closed;
+        
+        OpenCart(Cart cart) {
+            this.cart = cart;
+        }
     }
     
-    public abstract boolean isExpired();
-    public abstract boolean requiresShipping();
-}
-
-class PerishableProduct extends Product {
-    private LocalDate expirationDate;
+    private final Map<String, Product> products = new ConcurrentHashMap<>();
+    private final Map<String, Customer> customers = new ConcurrentHashMap<>();
+    private final Map<Long, OpenCart> carts = new ConcurrentHashMap<>();
+    private final AtomicLong nextCartId = new AtomicLong(1);
+    private final ReservationLedger ledger;
+    private final long cartTtlMillis;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService evictor;
     
-    public PerishableProduct(String name, double price, int quantity, LocalDate expirationDate) {
-        super(name, price, quantity);
-        this.expirationDate = expirationDate;
+    public CheckoutHttpServer(int port, ReservationLedger ledger) throws IOException {
+        this(port, ledger, ledger != null ? ledger.getTtlMillis() : DEFAULT_CART_TTL_MILLIS);
     }
     
-    @Override
-    public boolean isExpired() {
-        return LocalDate.now().isAfter(expirationDate);
+    // Carts untouched for cartTtlMillis are dropped and their stock released; with a ledger the TTL
+    // defaults to the hold TTL, by which time every hold in an idle cart has already expired.
+    public CheckoutHttpServer(int port, ReservationLedger ledger, long cartTtlMillis) throws IOException {
+        this.ledger = ledger;
+        this.cartTtlMillis = cartTtlMillis;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/carts", this::handleCarts);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cart-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, cartTtlMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdleCarts, period, period, TimeUnit.MILLISECONDS);
     }
     
-    @Override
-    public boolean requiresShipping() {
-        return true;
+    int evictIdleCarts() {
+        long cutoff = System.currentTimeMillis() - cartTtlMillis;
+        int evicted = 0;
+        for (Map.Entry<Long, OpenCart> entry : carts.entrySet()) {
+            OpenCart open = entry.getValue();
+            if (open.touchedMillis < cutoff && carts.remove(entry.getKey(), open)) {
+                synchronized (open.cart) {
+                    open.closed = true;
+                    open.cart.release();
+                }
+                evicted++;
+            }
+        }
+        return evicted;
     }
-}
-
-class NonPerishableProduct extends Product {
-    private boolean needsShipping;
     
-    public NonPerishableProduct(String name, double price, int quantity, boolean needsShipping) {
-        super(name, price, quantity);
-        this.needsShipping = needsShipping;
+    public int openCarts() {
+        return carts.size();
     }
     
-    @Override
-    public boolean isExpired() {
-        return false;
+    // Virtual threads when the runtime has them (JDK 21+), a cached pool otherwise.
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
     }
     
-    @Override
-    public boolean requiresShipping() {
-        return needsShipping;
+    public void addProduct(Product product) {
+        products.put(product.getName(), product);
     }
-}
-
-class ShippableProduct extends Product implements Shippable {
-    private double weight;
-    private LocalDate expirationDate;
     
-    public ShippableProduct(String name, double price, int quantity, double weight, LocalDate expirationDate) {
-        super(name, price, quantity);
-        this.weight = weight;
-        this.expirationDate = expirationDate;
+    public void addCustomer(Customer customer) {
+        customers.put(customer.getName(), customer);
     }
     
-    public ShippableProduct(String name, double price, int quantity, double weight) {
-        this(name, price, quantity, weight, null);
+    public int getPort() {
+        return server.getAddress().getPort();
     }
     
-    @Override
-    public double getWeight() {
-        return weight;
+    public void start() {
+        server.start();
     }
     
     @Override
-    public boolean isExpired() {
-        return expirationDate != null && LocalDate.now().isAfter(expirationDate);
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        evictor.shutdownNow();
     }
     
-    @Override
-    public boolean requiresShipping() {
-        return true;
+    // POST /carts
+    // POST /carts/{id}/items?product=<name>&quantity=<n>
+    // POST /carts/{id}/checkout?customer=<name>
+    private void handleCarts(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Method not allowed");
+                return;
+            }
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            if (path.length == 2) {
+                long id = nextCartId.getAndIncrement();
+                carts.put(id, new OpenCart(new Cart(ledger)));
+                respond(exchange, 201, Long.toString(id));
+            } else if (path.length == 4 && "items".equals(path[3])) {
+                addItem(exchange, parseId(path[2]), query);
+            } else if (path.length == 4 && "checkout".equals(path[3])) {
+                checkout(exchange, parseId(path[2]), query);
+            } else {
+                respond(exchange, 404, "Not found");
+            }
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage());
+        } catch (RuntimeException e) {
+            // Unexpected errors still get an answer instead of a dropped exchange.
+            if (exchange.getResponseCode() == -1) {
+                respond(exchange, 500, "Internal error: " + e.getMessage());
+            }
+        } finally {
+            exchange.close();
+        }
     }
-}
-
-class Customer {
-    private String name;
-    private double balance;
     
-    public Customer(String name, double balance) {
-        this.name = name;
-        this.balance = balance;
+    private void addItem(HttpExchange exchange, long cartId, Map<String, String> query) throws IOException {
+        OpenCart open = carts.get(cartId);
+        Product product = products.get(query.get("product"));
+        if (open == null || product == null) {
+            respond(exchange, 404, open == null ? "Unknown cart" : "Unknown product");
+            return;
+        }
+        int quantity = Integer.parseInt(query.getOrDefault("quantity", "1"));
+        AddResult result;
+        synchronized (open.cart) {
+            if (open.closed) {
+                respond(exchange, 404, "Unknown cart");
+                return;
+            }
+            open.touchedMillis = System.currentTimeMillis();
+            result = open.cart.add(product, quantity);
+        }
+        if (result.isSuccess()) {
+            respond(exchange, 200, "OK");
+        } else if (result.getCode() == AddResult.Code.INVALID_QUANTITY) {
+            respond(exchange, 400, result.getMessage());
+        } else {
+            respond(exchange, 409, result.getMessage());
+        }
     }
     
-    public String getName() {
-        return name;
+    private void checkout(HttpExchange exchange, long cartId, Map<String, String> query) throws IOException {
+        Customer customer = customers.get(query.get("customer"));
+        if (customer == null) {
+            respond(exchange, 404, "Unknown customer");
+            return;
+        }
+        OpenCart open = carts.remove(cartId);
+        if (open == null) {
+            respond(exchange, 404, "Unknown cart");
+            return;
+        }
+        CheckoutResult result;
+        // An items request that looked the cart up before the removal must not mutate it mid-checkout.
+        synchronized (open.cart) {
+            open.closed = true;
+            result = ECommerceSystem.checkout(customer, open.cart);
+        }
+        if (result.isSuccess()) {
+            respond(exchange, 200, "Amount " + Money.format(result.getTotalAmount()));
+        } else {
+            respond(exchange, 409, result.getMessage());
+        }
     }
     
-    public double getBalance() {
-        return balance;
+    private static long parseId(String id) {
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cart id: " + id);
+        }
+    }
+    
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                          URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
     }
     
-    public void deductBalance(double amount) {
-        this.balance -= amount;
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
     }
 }
 
-class CartItem {
-    private Product product;
-    private int quantity;
+// Load drivers behind the figures quoted for the performance work. Run with: java Benchmarks <name> [size]
+// where name is reservations, rejections, journal, recovery, http, scaling, archive, import, receipts,
+// dispatch, parcels or all. Receipts go to the discarding sink unless the benchmark is about sinks.
+final class Benchmarks {
+    private static final long RUN_MILLIS = 1000;
     
-    public CartItem(Product product, int quantity) {
-        this.product = product;
-        this.quantity = quantity;
+    private interface Worker {
+        // Runs until the deadline and returns the number of operations completed.
+        long run(int thread, long deadlineNanos) throws Exception;
     }
     
-    public Product getProduct() {
-        return product;
+    private Benchmarks() {
     }
     
-    public int getQuantity() {
-        return quantity;
+    public static void main(String[] args) throws Exception {
+        String name = args.length > 0 ? args[0] : "all";
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : -1;
+        ReceiptSink previous = ECommerceSystem.getReceiptSink();
+        ECommerceSystem.setReceiptSink(DiscardingReceiptSink.INSTANCE);
+        try {
+            boolean all = "all".equals(name);
+            boolean known = all;
+            if (all || "reservations".equals(name)) {
+                reservations();
+                known = true;
+            }
+            if (all || "rejections".equals(name)) {
+                rejections();
+                known = true;
+            }
+            if (all || "journal".equals(name)) {
+                journal();
+                known = true;
+            }
+            if (all || "recovery".equals(name)) {
+                recovery();
+                known = true;
+            }
+            if (all || "http".equals(name)) {
+                http(size > 0 ? size : 10_000);
+                known = true;
+            }
+            if (all || "scaling".equals(name)) {
+                scaling(size > 0 ? size : Runtime.getRuntime().availableProcessors());
+                known = true;
+            }
+            if (all || "archive".equals(name)) {
+                archive(size > 0 ? size : 1_000_000);
+                known = true;
+            }
+            if (all || "import".equals(name)) {
+                importer(size > 0 ? size : 2_000_000);
+                known = true;
+            }
+            if (all || "receipts".equals(name)) {
+                receipts();
+                known = true;
+            }
+            if (all || "dispatch".equals(name)) {
+                dispatch(size > 0 ? size : 400_000);
+                known = true;
+            }
+            if (all || "parcels".equals(name)) {
+                parcels();
+                known = true;
+            }
+            if (!known) {
+                throw new IllegalArgumentException("Unknown benchmark: " + name);
+            }
+        } finally {
+            ECommerceSystem.setReceiptSink(previous);
+        }
     }
     
-    public double getTotalPrice() {
-        return product.getPrice() * quantity;
+    // tryReserve/release pairs against one hot SKU, the same SKU striped, and 1,024 SKUs.
+    private static void reservations() throws Exception {
+        System.out.println("== Reservations/sec (tryReserve + release of one unit)");
+        System.out.printf("%8s %16s %16s %16s%n", "threads", "one SKU", "one SKU striped", "1024 SKUs");
+        for (int threads : new int[] {1, 8, 32, 64}) {
+            Product hot = stockedProduct("Hot", 1_000_000);
+            Product striped = stockedProduct("Striped", 1_000_000);
+            striped.enableStriping();
+            Product[] skus = new Product[1024];
+            for (int i = 0; i < skus.length; i++) {
+                skus[i] = stockedProduct("SKU-" + i, 1_000_000);
+            }
+            double one = runThreads(threads, (thread, deadline) -> reserveLoop(hot, deadline));
+            double oneStriped = runThreads(threads, (thread, deadline) -> reserveLoop(striped, deadline));
+            double many = runThreads(threads, (thread, deadline) -> {
+                long ops = 0;
+                int next = thread * 31;
+                while ((ops & 255) != 0 || System.nanoTime() < deadline) {
+                    Product product = skus[next++ & (skus.length - 1)];
+                    if (product.tryReserve(1)) {
+                        product.release(1);
+                    }
+                    ops++;
+                }
+                return ops;
+            });
+            System.out.printf("%8d %16.0f %16.0f %16.0f%n", threads, one, oneStriped, many);
+        }
     }
-}
-
-class Cart {
-    private List<CartItem> items;
     
-    public Cart() {
-        this.items = new ArrayList<>();
+    private static long reserveLoop(Product product, long deadline) {
+        long ops = 0;
+        while ((ops & 255) != 0 || System.nanoTime() < deadline) {
+            if (product.tryReserve(1)) {
+                product.release(1);
+            }
+            ops++;
+        }
+        return ops;
     }
     
-    public void add(Product product, int quantity) throws Exception {
-        if (product.isExpired()) {
-            throw new Exception("Cannot add expired product: " + product.getName());
+    // Every other checkout is rejected for insufficient balance.
+    private static void rejections() throws Exception {
+        System.out.println("== Checkouts/sec at a 50% rejection rate");
+        for (int threads : new int[] {1, 8}) {
+            Product widget = stockedProduct("Widget", Integer.MAX_VALUE);
+            AtomicLong rejected = new AtomicLong();
+            AtomicLong total = new AtomicLong();
+            double rate = runThreads(threads, (thread, deadline) -> {
+                Customer rich = new Customer("Rich-" + thread, Long.MAX_VALUE / 4);
+                Customer poor = new Customer("Poor-" + thread, 0);
+                long ops = 0;
+                long rejects = 0;
+                while ((ops & 255) != 0 || System.nanoTime() < deadline) {
+                    Cart cart = new Cart();
+                    cart.add(widget, 1);
+                    if (!ECommerceSystem.checkout((ops & 1) == 0 ? rich : poor, cart).isSuccess()) {
+                        rejects++;
+                    }
+                    ops++;
+                }
+                rejected.addAndGet(rejects);
+                total.addAndGet(ops);
+                return ops;
+            });
+            System.out.printf("%d thread(s): %.0f checkouts/sec, %.1f%% rejected%n", threads, rate,
+                              100.0 * rejected.get() / total.get());
         }
-        
-        if (quantity > product.getQuantity()) {
-            throw new Exception("Insufficient quantity for product: " + product.getName() + 
-                              ". Available: " + product.getQuantity() + ", Requested: " + quantity);
+    }
+    
+    // Durable checkouts from 32 threads; each group-commit window shares one fsync across a batch.
+    private static void journal() throws Exception {
+        System.out.println("== Durable checkouts/sec by group-commit window (32 threads)");
+        for (long windowMicros : new long[] {0, 100, 500, 2000}) {
+            Path directory = Files.createTempDirectory("journal-bench");
+            Product widget = stockedProduct("Widget", Integer.MAX_VALUE);
+            try (CheckoutJournal journal = CheckoutJournal.open(directory, windowMicros)) {
+                ECommerceSystem.setJournal(journal);
+                double rate = runThreads(32, (thread, deadline) -> {
+                    Customer customer = new Customer("Customer-" + thread, Long.MAX_VALUE / 4);
+                    long ops = 0;
+                    while (System.nanoTime() < deadline) {
+                        Cart cart = new Cart();
+                        cart.add(widget, 1);
+                        ECommerceSystem.checkout(customer, cart);
+                        ops++;
+                    }
+                    return ops;
+                });
+                System.out.printf("window %5d us: %.0f checkouts/sec%n", windowMicros, rate);
+            } finally {
+                ECommerceSystem.setJournal(null);
+                deleteTree(directory);
+            }
         }
-        
-        items.add(new CartItem(product, quantity));
-        
-        product.setQuantity(product.getQuantity() - quantity);
     }
     
-    public List<CartItem> getItems() {
-        return items;
+    // Each connection loops create cart, add item, checkout; latency is per HTTP request.
+    private static void http(int connections) throws Exception {
+        System.out.println("== HTTP load test, " + connections + " concurrent connections");
+        try (CheckoutHttpServer server = new CheckoutHttpServer(0, null)) {
+            server.addProduct(stockedProduct("Widget", Integer.MAX_VALUE));
+            for (int i = 0; i < connections; i++) {
+                server.addCustomer(new Customer("Customer-" + i, Long.MAX_VALUE / 4));
+            }
+            server.start();
+            URI base = URI.create("http://127.0.0.1:" + server.getPort());
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            Latencies latencies = new Latencies();
+            AtomicLong failures = new AtomicLong();
+            AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(5 * RUN_MILLIS);
+            CompletableFuture<?>[] shoppers = new CompletableFuture<?>[connections];
+            for (int i = 0; i < connections; i++) {
+                shoppers[i] = shop(client, base, "Customer-" + i, deadline, latencies)
+                    .exceptionally(e -> {
+                        failures.incrementAndGet();
+                        firstFailure.compareAndSet(null, e);
+                        return null;
+                    });
+            }
+            CompletableFuture.allOf(shoppers).join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d requests, %.0f requests/sec, p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, "
+                              + "%d failed connections%n", latencies.count(), latencies.count() / seconds,
+                              latencies.percentile(0.50) / 1e6, latencies.percentile(0.99) / 1e6,
+                              latencies.percentile(0.999) / 1e6, failures.get());
+            if (firstFailure.get() != null) {
+                System.out.println("first failure: " + firstFailure.get());
+            }
+        }
     }
     
-    public boolean isEmpty() {
-        return items.isEmpty();
+    private static CompletableFuture<Void> shop(HttpClient client, URI base, String customer, long deadline,
+                                                Latencies latencies) {
+        if (System.nanoTime() >= deadline) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return post(client, base.resolve("/carts"), latencies).thenCompose(cartId ->
+            post(client, base.resolve("/carts/" + cartId + "/items?product=Widget&quantity=1"), latencies)
+                .thenCompose(added -> post(client, base.resolve("/carts/" + cartId + "/checkout?customer="
+                                                                 + customer), latencies)))
+            .thenCompose(receipt -> shop(client, base, customer, deadline, latencies));
     }
     
-    public double getSubtotal() {
-        return items.stream().mapToDouble(CartItem::getTotalPrice).sum();
+    private static CompletableFuture<String> post(HttpClient client, URI uri, Latencies latencies) {
+        long start = System.nanoTime();
+        HttpRequest request = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.noBody()).build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+            latencies.record(System.nanoTime() - start);
+            if (response.statusCode() >= 300) {
+                throw new IllegalStateException("HTTP " + response.statusCode() + ": " + response.body());
+            }
+            return response.body();
+        });
     }
-}
-
-class ShippingService {
-    private static final double SHIPPING_RATE_PER_KG = 10.0;
     
-    public static double calculateShippingFee(List<Shippable> shippableItems) {
-        double totalWeight = shippableItems.stream().mapToDouble(Shippable::getWeight).sum();
-        return totalWeight * SHIPPING_RATE_PER_KG;
+    // The same backlog on pools of 1..maxThreads; efficiency is speedup over one thread divided by threads.
+    private static void scaling(int maxThreads) throws Exception {
+        System.out.println("== ParallelCheckout scaling, 100,000 orders from 1,000 customers");
+        System.out.printf("%8s %14s %9s %11s%n", "threads", "orders/sec", "speedup", "efficiency");
+        Product[] products = new Product[256];
+        for (int i = 0; i < products.length; i++) {
+            products[i] = stockedProduct("SKU-" + i, Integer.MAX_VALUE);
+        }
+        // One untimed pass so the single-thread baseline is not paying for JIT warm-up.
+        ForkJoinPool warmUp = new ForkJoinPool(1);
+        try {
+            ParallelCheckout.checkoutAll(backlog(products, 100_000), warmUp);
+        } finally {
+            warmUp.shutdown();
+        }
+        double baseline = 0;
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            List<CheckoutRequest> requests = backlog(products, 100_000);
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                long start = System.nanoTime();
+                ParallelCheckout.checkoutAll(requests, pool);
+                double rate = requests.size() * 1e9 / (System.nanoTime() - start);
+                if (threads == 1) {
+                    baseline = rate;
+                }
+                System.out.printf("%8d %14.0f %8.2fx %10.0f%%%n", threads, rate, rate / baseline,
+                                  100 * rate / baseline / threads);
+            } finally {
+                pool.shutdown();
+            }
+        }
     }
     
-    public static void processShipment(List<Shippable> shippableItems) {
-        if (shippableItems.isEmpty()) {
-            return;
+    private static List<CheckoutRequest> backlog(Product[] products, int orders) {
+        Customer[] customers = new Customer[1000];
+        for (int i = 0; i < customers.length; i++) {
+            customers[i] = new Customer("Customer-" + i, Long.MAX_VALUE / 4);
         }
-        
-        System.out.println("** Shipment notice **");
-        double totalWeight = 0;
-        
-        for (Shippable item : shippableItems) {
-            System.out.println("1x " + item.getName() + " " + (item.getWeight() * 1000) + "g");
-            totalWeight += item.getWeight();
+        List<CheckoutRequest> requests = new ArrayList<>(orders);
+        for (int i = 0; i < orders; i++) {
+            Cart cart = new Cart();
+            cart.add(products[i % products.length], 1);
+            cart.add(products[(i * 7 + 3) % products.length], 2);
+            requests.add(new CheckoutRequest(customers[i % customers.length], cart));
         }
-        
-        System.out.println("Total package weight " + totalWeight + "kg");
+        return requests;
     }
-}
-
-class ECommerceSystem {
     
-    public static void checkout(Customer customer, Cart cart) {
+    // Checkouts run while snapshots are taken, then a second batch lands only in the journal tail. A customer and a
+    // product added after the snapshotter started are in the mix, and the last segment ends in a torn frame.
+    // Restoring into fresh entities must reproduce every live balance and stock level.
+    private static void recovery() throws Exception {
+        System.out.println("== Snapshot restore + journal replay (8 threads)");
+        Path directory = Files.createTempDirectory("recovery-bench");
+        Map<String, Customer> customers = new LinkedHashMap<>();
+        Map<String, Product> products = new LinkedHashMap<>();
+        for (int i = 0; i < 64; i++) {
+            customers.put("Customer-" + i, new Customer("Customer-" + i, Money.ofMajor(1_000_000L + i)));
+        }
+        for (int i = 0; i < 16; i++) {
+            products.put("SKU-" + i, stockedProduct("SKU-" + i, 1_000_000));
+        }
         try {
-            if (cart.isEmpty()) {
-                throw new Exception("Cart is empty");
+            long checkouts;
+            int snapshots;
+            try (CheckoutJournal journal = CheckoutJournal.open(directory, 100);
+                 StateSnapshotter snapshotter = new StateSnapshotter(directory, journal, customers, products)) {
+                ECommerceSystem.setJournal(journal);
+                customers.put("Late-customer", new Customer("Late-customer", Money.ofMajor(1_000_000)));
+                products.put("Late-product", stockedProduct("Late-product", 1_000_000));
+                Customer[] buyers = customers.values().toArray(new Customer[0]);
+                Product[] stock = products.values().toArray(new Product[0]);
+                AtomicLong placed = new AtomicLong();
+                Worker shopper = (thread, deadline) -> {
+                    long ops = 0;
+                    int next = thread * 7;
+                    while (System.nanoTime() < deadline) {
+                        Cart cart = new Cart();
+                        cart.add(stock[next % stock.length], 1 + next % 3);
+                        cart.add(stock[(next + 5) % stock.length], 1);
+                        if (ECommerceSystem.checkout(buyers[next % buyers.length], cart).isSuccess()) {
+                            ops++;
+                        }
+                        next++;
+                    }
+                    placed.addAndGet(ops);
+                    return ops;
+                };
+                CountDownLatch stop = new CountDownLatch(1);
+                int[] taken = new int[1];
+                AtomicReference<Exception> snapshotFailure = new AtomicReference<>();
+                Thread snapshotting = new Thread(() -> {
+                    try {
+                        do {
+                            snapshotter.snapshot();
+                            taken[0]++;
+                        } while (!stop.await(50, TimeUnit.MILLISECONDS));
+                    } catch (Exception e) {
+                        snapshotFailure.set(e);
+                    }
+                });
+                snapshotting.start();
+                runThreads(8, shopper);
+                stop.countDown();
+                snapshotting.join();
+                if (snapshotFailure.get() != null) {
+                    throw snapshotFailure.get();
+                }
+                snapshotter.snapshot();
+                snapshots = taken[0] + 1;
+                runThreads(8, shopper);
+                checkouts = placed.get();
+            } finally {
+                ECommerceSystem.setJournal(null);
             }
+            List<Long> segments = CheckoutJournal.segments(directory);
+            Path tail = CheckoutJournal.segmentPath(directory, segments.get(segments.size() - 1));
+            Files.write(tail, new byte[] {0, 0, 1, 0, 42, 42, 42}, StandardOpenOption.APPEND);
             
-            for (CartItem item : cart.getItems()) {
-                if (item.getProduct().isExpired()) {
-                    throw new Exception("Product expired: " + item.getProduct().getName());
+            Map<String, Customer> restoredCustomers = new HashMap<>();
+            Map<String, Product> restoredProducts = new HashMap<>();
+            int c = 0;
+            for (String name : customers.keySet()) {
+                long balance = name.startsWith("Late") ? Money.ofMajor(1_000_000) : Money.ofMajor(1_000_000L + c++);
+                restoredCustomers.put(name, new Customer(name, balance));
+            }
+            for (String name : products.keySet()) {
+                restoredProducts.put(name, stockedProduct(name, 1_000_000));
+            }
+            long start = System.nanoTime();
+            int replayed = StateSnapshotter.restore(directory, restoredCustomers, restoredProducts);
+            long elapsed = System.nanoTime() - start;
+            boolean balances = true;
+            for (Customer customer : customers.values()) {
+                balances &= restoredCustomers.get(customer.getName()).getBalance() == customer.getBalance();
+            }
+            boolean stock = true;
+            for (Product product : products.values()) {
+                stock &= restoredProducts.get(product.getName()).getQuantity() == product.getQuantity();
+            }
+            System.out.printf("%d checkouts, %d snapshots, restore %.1f ms replaying %d effects: balances %s, stock %s%n",
+                              checkouts, snapshots, elapsed / 1e6, replayed, balances ? "match" : "DIFFER",
+                              stock ? "match" : "DIFFER");
+        } finally {
+            deleteTree(directory);
+        }
+    }
+    
+    private static void archive(int receipts) throws Exception {
+        System.out.println("== Receipt archive revenue scan, " + receipts + " receipts");
+        Path directory = Files.createTempDirectory("archive-bench");
+        try {
+            OrderLines items = OrderLines.of(List.of(new CartItem(stockedProduct("TV", 0), 1),
+                                                     new CartItem(stockedProduct("Cheese", 0), 3)));
+            long expected = 0;
+            try (ReceiptArchiveWriter writer = new ReceiptArchiveWriter(directory, 65_536)) {
+                for (int i = 0; i < receipts; i++) {
+                    long subtotal = 50_000 + (i % 977) * 100;
+                    long amount = subtotal + 3_000;
+                    writer.append(items, subtotal, 3_000, amount);
+                    expected += amount;
                 }
-                if (item.getProduct().getQuantity() < 0) {
-                    throw new Exception("Product out of stock: " + item.getProduct().getName());
+            }
+            long best = Long.MAX_VALUE;
+            long revenue = 0;
+            for (int run = 0; run < 5; run++) {
+                long start = System.nanoTime();
+                revenue = ReceiptArchiveReader.sumRevenue(directory);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("sumRevenue: %.1f ms, %.0f receipts/sec, total %s%n", best / 1e6,
+                              receipts * 1e9 / best, revenue == expected ? "exact" : "WRONG");
+        } finally {
+            deleteTree(directory);
+        }
+    }
+    
+    // Every 100,000th row has a bad price; the report must name exactly those lines.
+    private static void importer(int rows) throws Exception {
+        System.out.println("== Catalog import, " + rows + " rows");
+        Path file = Files.createTempFile("catalog-bench", ".csv");
+        try {
+            List<Long> planted = new ArrayList<>();
+            try (PrintStream out = new PrintStream(Files.newOutputStream(file), false, StandardCharsets.UTF_8)) {
+                out.print("kind,name,price,quantity,weight,expiry,needsShipping\n");
+                for (int i = 0; i < rows; i++) {
+                    long line = i + 2;
+                    if (i % 100_000 == 99_999) {
+                        out.print("shippable,Bad-" + i + ",12.x5,10,500,,\n");
+                        planted.add(line);
+                    } else if (i % 3 == 0) {
+                        out.print("perishable,Cheese-" + i + ",4.25,20,,2030-01-15,\n");
+                    } else if (i % 3 == 1) {
+                        out.print("nonperishable,Card-" + i + ",50,100,,,false\n");
+                    } else {
+                        out.print("shippable,TV-" + i + ",499.99,3,5000,,\n");
+                    }
                 }
             }
-            
-            double subtotal = cart.getSubtotal();
-            
-            List<Shippable> shippableItems = new ArrayList<>();
-            for (CartItem item : cart.getItems()) {
-                if (item.getProduct().requiresShipping() && item.getProduct() instanceof Shippable) {
-                    for (int i = 0; i < item.getQuantity(); i++) {
-                        shippableItems.add((Shippable) item.getProduct());
+            CatalogImporter.importCsv(file);
+            CatalogImporter.ImportReport report = CatalogImporter.importCsv(file);
+            List<Long> rejected = new ArrayList<>();
+            for (CatalogImporter.Rejection rejection : report.getRejections()) {
+                rejected.add(rejection.getLine());
+            }
+            System.out.printf("%.0f rows/sec, %d products, %d rejections, line numbers %s%n",
+                              report.getRowsPerSecond(), report.getProducts().size(), rejected.size(),
+                              rejected.equals(planted) ? "match" : "DIFFER: " + rejected);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    // 8 threads checking out through each sink; the async sink must write every receipt it was given.
+    private static void receipts() throws Exception {
+        System.out.println("== Checkouts/sec by receipt sink (8 threads)");
+        CountingOutputStream syncOut = new CountingOutputStream();
+        CountingOutputStream asyncOut = new CountingOutputStream();
+        ReceiptSink[] sinks = {
+            new PrintStreamReceiptSink(new PrintStream(syncOut, false, StandardCharsets.UTF_8)),
+            new AsyncReceiptSink(asyncOut),
+            DiscardingReceiptSink.INSTANCE
+        };
+        String[] names = {"PrintStream", "async", "discarding"};
+        CountingOutputStream[] outs = {syncOut, asyncOut, null};
+        for (int s = 0; s < sinks.length; s++) {
+            ECommerceSystem.setReceiptSink(sinks[s]);
+            Product cheese = stockedProduct("Cheese", Integer.MAX_VALUE);
+            Product card = new NonPerishableProduct("Card", Money.ofMajor(50), Integer.MAX_VALUE, false);
+            AtomicLong orders = new AtomicLong();
+            double rate = runThreads(8, (thread, deadline) -> {
+                Customer customer = new Customer("Customer-" + thread, Long.MAX_VALUE / 4);
+                long ops = 0;
+                while (System.nanoTime() < deadline) {
+                    Cart cart = new Cart();
+                    cart.add(cheese, 2);
+                    cart.add(card, 1);
+                    ECommerceSystem.checkout(customer, cart);
+                    ops++;
+                }
+                orders.addAndGet(ops);
+                return ops;
+            });
+            sinks[s].close();
+            String written = outs[s] == null ? ""
+                : String.format(", %d of %d receipts written", outs[s].receipts(), orders.get());
+            System.out.printf("%-26s %.0f checkouts/sec%s%n", names[s], rate, written);
+        }
+    }
+    
+    // 8 producers through a 64-slot ring in manifests of up to 32.
+    private static void dispatch(int shipments) throws Exception {
+        System.out.println("== Shipment dispatch, " + shipments + " shipments from 8 producers, 64-slot ring");
+        Product tv = stockedProduct("TV", 0);
+        OrderLines items = OrderLines.of(List.of(new CartItem(tv, 2)));
+        AtomicLong delivered = new AtomicLong();
+        AtomicLong units = new AtomicLong();
+        AtomicInteger largest = new AtomicInteger();
+        int perProducer = shipments / 8;
+        try (ShipmentDispatcher dispatcher = new ShipmentDispatcher(64, 32, manifest -> {
+            for (int i = 0; i < manifest.size(); i++) {
+                units.addAndGet(manifest.getCount(i, 0));
+            }
+            delivered.addAndGet(manifest.size());
+            largest.accumulateAndGet(manifest.size(), Math::max);
+        })) {
+            long start = System.nanoTime();
+            Thread[] producers = new Thread[8];
+            for (int p = 0; p < producers.length; p++) {
+                producers[p] = new Thread(() -> {
+                    for (int i = 0; i < perProducer; i++) {
+                        dispatcher.publish("Customer", items);
                     }
+                });
+                producers[p].start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            dispatcher.awaitDispatched();
+            long elapsed = System.nanoTime() - start;
+            long published = (long) perProducer * producers.length;
+            System.out.printf("%.0f shipments/sec, %d of %d delivered, %d of %d units, largest manifest %d%n",
+                              published * 1e9 / elapsed, delivered.get(), published, units.get(), published * 2,
+                              largest.get());
+        }
+    }
+    
+    // 2,500 TVs and 2,500 radios under a 30 kg cap.
+    private static void parcels() {
+        System.out.println("== Parcel packing, 5,000-unit order");
+        List<CartItem> items = List.of(new CartItem(new ShippableProduct("TV", Money.ofMajor(500), 0, 5.0), 2500),
+                                       new CartItem(new ShippableProduct("Radio", Money.ofMajor(80), 0, 4.5), 2500));
+        ParcelBuilder builder = new ParcelBuilder(30);
+        int parcels = 0;
+        for (int i = 0; i < 20_000; i++) {
+            parcels += builder.pack(items).getParcelCount();
+        }
+        int runs = 20_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            parcels += builder.pack(items).getParcelCount();
+        }
+        double micros = (System.nanoTime() - start) / 1e3 / runs;
+        System.out.printf("%.1f us per pack, %d parcels%n", micros, parcels / (20_000 + runs));
+    }
+    
+    private static Product stockedProduct(String name, int quantity) {
+        return new ShippableProduct(name, Money.ofMajor(10), quantity, 0.5);
+    }
+    
+    // Starts the workers together, runs them for RUN_MILLIS and returns operations per second.
+    private static double runThreads(int threads, Worker worker) throws Exception {
+        AtomicLong ops = new AtomicLong();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    ops.addAndGet(worker.run(thread, deadline[0]));
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
                 }
+            });
+            workers[t].start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        deadline[0] = start + TimeUnit.MILLISECONDS.toNanos(RUN_MILLIS);
+        go.countDown();
+        for (Thread thread : workers) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return ops.get() * 1e9 / elapsed;
+    }
+    
+    private static void deleteTree(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
             }
-            
-            double shippingFee = ShippingService.calculateShippingFee(shippableItems);
-            double totalAmount = subtotal + shippingFee;
-            
-            if (customer.getBalance() < totalAmount) {
-                throw new Exception("Customer's balance is insufficient. Required: " + totalAmount + 
-                                  ", Available: " + customer.getBalance());
+        }
+    }
+    
+    private static final class Latencies {
+        private long[] samples = new long[1 << 16];
+        private int size;
+        
+        synchronized void record(long nanos) {
+            if (size == samples.length) {
+                samples = Arrays.copyOf(samples, size * 2);
             }
-            
-            customer.deductBalance(totalAmount);
-            
-            ShippingService.processShipment(shippableItems);
-            
-            System.out.println("** Checkout receipt **");
-            for (CartItem item : cart.getItems()) {
-                System.out.println(item.getQuantity() + "x " + item.getProduct().getName() + 
-                                 " " + (int)item.getTotalPrice());
-            }
-            System.out.println("----------------------");
-            System.out.println("Subtotal " + (int)subtotal);
-            System.out.println("Shipping " + (int)shippingFee);
-            System.out.println("Amount " + (int)totalAmount);
-            System.out.println("Customer balance after payment: " + customer.getBalance());
-            System.out.println("=================================================");
-            
-        } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+            samples[size++] = nanos;
+        }
+        
+        synchronized int count() {
+            return size;
+        }
+        
+        synchronized long percentile(double quantile) {
+            if (size == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(size - 1, (int) Math.ceil(quantile * size) - 1)];
+        }
+    }
+    
+    // Counts receipts by their "** Checkout receipt **" header as the bytes go by.
+    private static final class CountingOutputStream extends OutputStream {
+        private static final byte[] MARKER = "** Checkout receipt **".getBytes(StandardCharsets.UTF_8);
+        private final AtomicLong receipts = new AtomicLong();
+        private int matched;
+        
+        @Override
+        public synchronized void write(int b) {
+            matched = b == MARKER[matched] ? matched + 1 : (b == MARKER[0] ? 1 : 0);
+            if (matched == MARKER.length) {
+                receipts.incrementAndGet();
+                matched = 0;
+            }
+        }
+        
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                write(bytes[i]);
+            }
+        }
+        
+        long receipts() {
+            return receipts.get();
         }
     }
 }
@@ -271,75 +5767,79 @@ public class Main {
     public static void main(String[] args) {
         System.out.println("=========== E-Commerce System Test Cases ===========n");
         
-        ShippableProduct cheese = new ShippableProduct("Cheese", 100, 5, 0.2, LocalDate.now().plusDays(7));
-        ShippableProduct tv = new ShippableProduct("TV", 500, 3, 5.0);
-        NonPerishableProduct scratchCard = new NonPerishableProduct("Mobile Scratch Card", 50, 10, false);
-        ShippableProduct biscuits = new ShippableProduct("Biscuits", 150, 4, 0.7, LocalDate.now().plusDays(30));
+        ShippableProduct cheese = new ShippableProduct("Cheese", Money.ofMajor(100), 5, 0.2, LocalDate.now().plusDays(7));
+        ShippableProduct tv = new ShippableProduct("TV", Money.ofMajor(500), 3, 5.0);
+        NonPerishableProduct scratchCard = new NonPerishableProduct("Mobile Scratch Card", Money.ofMajor(50), 10, false);
+        ShippableProduct biscuits = new ShippableProduct("Biscuits", Money.ofMajor(150), 4, 0.7, LocalDate.now().plusDays(30));
         
-        Customer customer = new Customer("Ahmed Mohamed", 1000.0);
+        Customer customer = new Customer("Ahmed Mohamed", Money.ofMajor(1000));
         
         System.out.println("=========== Test Case 1: Successful Checkout ===========");
         Cart cart1 = new Cart();
-        try {
-            cart1.add(cheese, 2);
-            cart1.add(biscuits, 1);
-            cart1.add(scratchCard, 1);
-            ECommerceSystem.checkout(customer, cart1);
-        } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+        if (add(cart1, cheese, 2) && add(cart1, biscuits, 1) && add(cart1, scratchCard, 1)) {
+            checkout(customer, cart1);
         }
         
         System.out.println("\n=========== Test Case 2: Empty Cart ===========");
         Cart emptyCart = new Cart();
-        ECommerceSystem.checkout(customer, emptyCart);
+        checkout(customer, emptyCart);
         
         System.out.println("\n=========== Test Case 3: Insufficient Balance ===========");
-        Customer poorCustomer = new Customer("Eslam Zanaty", 50.0);
+        Customer poorCustomer = new Customer("Eslam Zanaty", Money.ofMajor(50));
         Cart expensiveCart = new Cart();
-        try {
-            expensiveCart.add(tv, 2);
-            ECommerceSystem.checkout(poorCustomer, expensiveCart);
-        } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+        if (add(expensiveCart, tv, 2)) {
+            checkout(poorCustomer, expensiveCart);
         }
         
         System.out.println("\n=========== Test Case 4: Insufficient Quantity ===========");
         Cart cart4 = new Cart();
-        try {
-            cart4.add(cheese, 10);
-            ECommerceSystem.checkout(customer, cart4);
-        } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+        if (add(cart4, cheese, 10)) {
+            checkout(customer, cart4);
         }
         
         System.out.println("\n=========== Test Case 5: Expired Product ===========");
-        ShippableProduct expiredCheese = new ShippableProduct("Expired Cheese", 100, 5, 0.2, LocalDate.now().minusDays(1));
+        ShippableProduct expiredCheese = new ShippableProduct("Expired Cheese", Money.ofMajor(100), 5, 0.2, LocalDate.now().minusDays(1));
         Cart cart5 = new Cart();
-        try {
-            cart5.add(expiredCheese, 1);
-            ECommerceSystem.checkout(customer, cart5);
-        } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+        if (add(cart5, expiredCheese, 1)) {
+            checkout(customer, cart5);
         }
         
         System.out.println("\n=========== Test Case 6: Non-Shippable Items Only ===========");
         Cart cart6 = new Cart();
-        try {
-            cart6.add(scratchCard, 3);
-            ECommerceSystem.checkout(customer, cart6);
-        } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+        if (add(cart6, scratchCard, 3)) {
+            checkout(customer, cart6);
         }
         
         System.out.println("\n=========== Test Case 7: Large Order with Shipping ===========");
-        Customer Rana = new Customer("Rana Osman", 5000.0);
+        Customer Rana = new Customer("Rana Osman", Money.ofMajor(5000));
         Cart cart7 = new Cart();
-        try {
-            cart7.add(tv, 2);
-            cart7.add(cheese, 1);
-            ECommerceSystem.checkout(Rana, cart7);
-        } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+        if (add(cart7, tv, 2) && add(cart7, cheese, 1)) {
+            checkout(Rana, cart7);
+        }
+        
+        System.out.println("\n=========== Test Case 8: Product Expires Overnight ===========");
+        ManualBusinessClock clock = new ManualBusinessClock(LocalDate.now());
+        BusinessClock.install(clock);
+        ShippableProduct milk = new ShippableProduct("Milk", Money.ofMajor(30), 5, 1.0, LocalDate.now());
+        Cart cart8 = new Cart();
+        add(cart8, milk, 1);
+        clock.advanceDays(1);
+        checkout(Rana, cart8);
+        BusinessClock.install(new SystemBusinessClock(ZoneId.systemDefault()));
+    }
+    
+    private static boolean add(Cart cart, Product product, int quantity) {
+        AddResult result = cart.add(product, quantity);
+        if (!result.isSuccess()) {
+            System.out.println("Error: " + result.getMessage());
+        }
+        return result.isSuccess();
+    }
+    
+    private static void checkout(Customer customer, Cart cart) {
+        CheckoutResult result = ECommerceSystem.checkout(customer, cart);
+        if (!result.isSuccess()) {
+            System.out.println("Error: " + result.getMessage());
         }
     }
 }
\ No newline at end of file